@@ -0,0 +1,138 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/** Resolves a stream of host names, with a bounded number of lookups in progress at a time.
+ * Names are read one per line, and each one is printed as soon as its lookup completes, so the
+ * output is not in the order of the input. Blank lines and lines starting with '#' are skipped.
+ *
+ * Results are printed in the same columns as the lookup command, or as newline-delimited JSON
+ * with one object per name:
+ *
+ *   {"name":"www.example.com","type":"A","answers":[{"type":"A","ttl":300,"data":"1.2.3.4"}]}
+ *
+ * A lookup that fails is printed with no answers, and in JSON with an "error" field.
+ */
+public class DNSBatchResolver {
+
+    private final DNSResolver resolver;
+    private final RecordType type;
+    private final int concurrency;
+    private final boolean json;
+    private final PrintStream out;
+
+    /** Creates a new batch resolver.
+     *
+     * @param resolver    Resolver used for the lookups, sharing its cache with other callers.
+     * @param type        Record type looked up for each name.
+     * @param concurrency Maximum number of lookups in progress at a time.
+     * @param json        true to print newline-delimited JSON, false to print columns.
+     * @param out         Where results are printed.
+     */
+    public DNSBatchResolver(DNSResolver resolver, RecordType type, int concurrency,
+                            boolean json, PrintStream out) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.resolver = resolver;
+        this.type = type;
+        this.concurrency = concurrency;
+        this.json = json;
+        this.out = out;
+    }
+
+    /** Resolves every name read from a reader, and returns once all of them are printed.
+     *
+     * @param names Reader the names are read from, one per line.
+     * @return The number of names looked up.
+     * @throws IOException          If the names could not be read.
+     * @throws InterruptedException If the thread is interrupted while waiting for lookups.
+     */
+    public long run(BufferedReader names) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        long count = 0;
+        try {
+            String line;
+            while ((line = names.readLine()) != null) {
+                String hostName = line.trim();
+                if (hostName.isEmpty() || hostName.startsWith("#"))
+                    continue;
+
+                permits.acquire();
+                count++;
+                DNSNode node = new DNSNode(hostName, type);
+                resolver.resolve(node).whenComplete((results, ex) -> {
+                    try {
+                        out.print(format(node, results, ex));
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        } finally {
+            // Wait for the lookups still in progress.
+            permits.acquire(concurrency);
+            permits.release(concurrency);
+            out.flush();
+        }
+        return count;
+    }
+
+    /** Formats the result of one lookup.
+     *
+     * @param node    The node that was looked up.
+     * @param results The records found, or null if the lookup failed.
+     * @param ex      Why the lookup failed, or null if it did not.
+     * @return The lines to print, each ending with a newline.
+     */
+    private String format(DNSNode node, Set<ResourceRecord> results, Throwable ex) {
+        StringBuilder text = new StringBuilder();
+        if (json) {
+            text.append("{\"name\":");
+            appendJsonString(text, node.getHostName());
+            text.append(",\"type\":\"").append(node.getType()).append("\",\"answers\":[");
+            if (results != null) {
+                String separator = "";
+                for (ResourceRecord record : results) {
+                    text.append(separator).append("{\"type\":\"").append(record.getType())
+                        .append("\",\"ttl\":").append(record.getTTL()).append(",\"data\":");
+                    appendJsonString(text, record.getTextResult());
+                    text.append('}');
+                    separator = ",";
+                }
+            }
+            text.append(']');
+            if (ex != null) {
+                text.append(",\"error\":");
+                appendJsonString(text, String.valueOf(ex.getCause() != null ? ex.getCause() : ex));
+            }
+            text.append("}\n");
+        } else if (results == null || results.isEmpty()) {
+            text.append(String.format("%-30s %-5s %-8d %s\n", node.getHostName(),
+                                      node.getType(), -1, "0.0.0.0"));
+        } else {
+            for (ResourceRecord record : results)
+                text.append(String.format("%-30s %-5s %-8d %s\n", node.getHostName(),
+                                          record.getType(), record.getTTL(),
+                                          record.getTextResult()));
+        }
+        return text.toString();
+    }
+
+    private static void appendJsonString(StringBuilder text, String value) {
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                text.append('\\').append(c);
+            else if (c < 0x20)
+                text.append(String.format("\\u%04x", (int) c));
+            else
+                text.append(c);
+        }
+        text.append('"');
+    }
+}
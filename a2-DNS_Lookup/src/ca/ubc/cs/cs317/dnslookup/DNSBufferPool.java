@@ -0,0 +1,52 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** A pool of direct buffers of one size. Buffers are kept in a fixed array, so taking a buffer
+ * from the pool or giving it back allocates nothing. When the pool is empty a new buffer is
+ * allocated, and when it is full a returned buffer is left to the garbage collector. A leased
+ * buffer that is never returned is not lost either; it is simply not reused.
+ *
+ * This class is thread-safe.
+ */
+public class DNSBufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /** Creates a new, empty pool.
+     *
+     * @param bufferSize The capacity of each buffer, in bytes.
+     * @param maxPooled  The maximum number of idle buffers kept in the pool.
+     */
+    public DNSBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Takes a buffer from the pool, or allocates one if the pool is empty.
+     *
+     * @return A cleared buffer of the pool's size.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer back to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer A buffer taken from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize)
+            buffers.offer(buffer);
+    }
+}
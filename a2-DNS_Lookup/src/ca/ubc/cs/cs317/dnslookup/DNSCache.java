@@ -1,18 +1,147 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
- * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * to a set of resource records (results). Cached results are only valid for the duration of
+ * the TTL (time-to-live) returned by the server, and expired results are never returned to the
+ * user as cached results.
+ *
+ * The cache is safe to use from any number of threads. Nodes are kept in a concurrent hash
+ * map, so a read never takes a lock and writes only lock the bin of the node they change. The
+ * records of each node are kept in a map that is never modified once it is published; a write
+ * replaces it with an updated copy, so readers can keep using the set they were given.
+ *
+ * Expired records are removed in the background by a timing wheel that runs once per second,
+ * so reading from the cache never has to sweep it. A read only compares the expiration time
+ * of each record with the current time, to leave out records that expired since the last
+ * tick.
+ *
+ * The cache is bounded both by number of nodes and by an estimate of the memory used by their
+ * records. Which nodes are evicted is decided by a W-TinyLFU policy, so names that are looked
+ * up all the time, such as the name servers of top-level domains, are kept over names that are
+ * only seen once. Reads are recorded in buffers striped by thread, and writes in a buffer of
+ * their own; both are applied to the policy in batches by whichever thread gets the policy
+ * lock, so that neither reads nor writes wait for it or share a counter. Reads are dropped
+ * rather than waited on if the stripe they go to is full.
+ *
+ * The cache also remembers negative results (RFC 2308): names that do not exist, and names
+ * that exist but have no record of a given type. These are kept apart from the records, for
+ * the negative TTL given by the server, and expire through the same timing wheel.
+ *
+ * A refresh listener can be registered to refresh popular nodes before they expire. When a
+ * lookup finds that a node has used up most of its TTL and has been looked up often, the
+ * listener is given the node so that it can be looked up again in the background. Only
+ * lookups through getCachedResults count towards how often a node is looked up; reads made
+ * through peekCachedResults and findZoneCut, and writes, do not, so the resolver's own reads
+ * and the refreshes themselves do not keep a node popular.
+ *
+ * Expired records can be kept for a grace period after they expire, so that they can still be
+ * served (RFC 8767) when the name servers of a node cannot be reached. They are only returned
+ * by getStaleResults, and only with a short TTL. There is no grace period unless one is set,
+ * so records are removed as soon as they expire.
+ *
+ * The zones whose NS records are cached are also indexed in a DNSDelegationIndex, so that the
+ * deepest zone cut of a name can be found without looking up each of its parent domains.
+ *
+ * The records of the cache can be saved to a snapshot file, periodically and on shutdown, and
+ * loaded again by a new cache. Loading only indexes the snapshot: a node is restored the first
+ * time it is looked up, and the NS records of a zone the first time a zone cut is looked for
+ * under it. Nodes that are never looked up are not restored, and are copied from the old
+ * snapshot to the new one when the cache is saved, until they expire.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+    private static final long DEFAULT_MAXIMUM_ENTRIES = 100000;
+    private static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+    private static final int READ_BUFFER_STRIPES =
+            Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final long MAXIMUM_NEGATIVE_TTL = 3 * 60 * 60;
+    private static final double DEFAULT_REFRESH_SHARE = 0.9;
+    private static final int DEFAULT_REFRESH_MINIMUM_FREQUENCY = 3;
+    private static final long STALE_TTL = 30;
+
+    // Rough sizes, in bytes, of the objects kept for each node and record.
+    private static final long NODE_OVERHEAD = 120;
+    private static final long RECORD_OVERHEAD = 100;
+    private static final long INET_OVERHEAD = 40;
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final ConcurrentHashMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults =
+            new ConcurrentHashMap<>();
+    private final ExpiryWheel expiryWheel =
+            new ExpiryWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+
+    private final TinyLfuPolicy<DNSNode> policy =
+            new TinyLfuPolicy<>(DEFAULT_MAXIMUM_ENTRIES, DEFAULT_MAXIMUM_BYTES);
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+    // Records added to the cache that the policy has not been told about yet.
+    private final Queue<ResourceRecord> writeBuffer = new ConcurrentLinkedQueue<>();
+    // How often nodes were looked up, to decide which ones to refresh. Guarded by policyLock.
+    private final FrequencySketch lookupSketch = new FrequencySketch(DEFAULT_MAXIMUM_ENTRIES);
+
+    // Names that do not exist, keyed by a node of type OTHER whatever the type of the query,
+    // and nodes that have no records of their type. Values are expiration times.
+    private final ConcurrentHashMap<DNSNode, Long> nonExistentNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<DNSNode, Long> noDataNodes = new ConcurrentHashMap<>();
+
+    private final DNSDelegationIndex delegations = new DNSDelegationIndex();
+
+    private volatile Consumer<DNSNode> refreshListener;
+    private volatile double refreshShare = DEFAULT_REFRESH_SHARE;
+    private volatile int refreshMinimumFrequency = DEFAULT_REFRESH_MINIMUM_FREQUENCY;
+    private volatile long staleGraceMillis = 0;
+    // A copy of the maximum number of entries of the policy, readable without its lock.
+    private volatile long maximumEntries = DEFAULT_MAXIMUM_ENTRIES;
+
+    // Runs the expiry wheel, and saves snapshots.
+    private final ScheduledExecutorService maintenanceThread;
+    private volatile DNSCacheSnapshot restoring;
+    private ScheduledFuture<?> snapshotTask;
+
+    /** The reads of the threads that map to one stripe, not yet applied to the policy. Reads
+     * made through getCachedResults are also counted as lookups, so they are kept apart.
+     */
+    private static final class ReadBuffer {
+        final Queue<DNSNode> reads = new ConcurrentLinkedQueue<>();
+        final Queue<DNSNode> lookups = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    private DNSCache() {
+        for (int i = 0; i < readBuffers.length; i++)
+            readBuffers[i] = new ReadBuffer();
+        maintenanceThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenanceThread.scheduleAtFixedRate(() -> {
+            // An exception escaping here would silently cancel every later tick.
+            try {
+                expiryWheel.advance(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                System.err.println("Cache expiry failed: " + e);
+            }
+        }, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,20 +153,226 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are left out
+     * of the returned set, but the cache itself is not modified. This method does not perform
+     * the query itself, it only returns previously cached results.
+     *
+     * The lookup counts as a use of the node, both to keep it in the cache and to refresh it
+     * before it expires. Reads that are not made for a user of the cache should use
+     * peekCachedResults instead.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
         Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        if (results == null && restoreFromSnapshot(node))
+            results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
+        recordRead(node, true);
+        Set<ResourceRecord> valid = validRecords(results);
+        if (refreshListener != null)
+            checkRefresh(node, valid);
+        return valid;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Returns the cached results of a query like getCachedResults, without counting it as a
+     * use of the node. Meant for reads made while resolving or answering another query, such
+     * as following CNAMEs or finding the addresses of name servers.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        if (!cachedResults.containsKey(node))
+            restoreFromSnapshot(node);
+        return peekResults(node);
+    }
+
+    /** Returns the records of a node that have expired, but less than the stale grace period
+     * ago. The records are copies with a TTL of thirty seconds, so that whoever uses them asks
+     * again soon. This method is meant to be used only once the node could not be looked up.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale copies of the records of the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+
+        long now = System.currentTimeMillis();
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (ResourceRecord record : results.keySet())
+            if (!record.isStillValid(now) && isWithinStaleGrace(record, now))
+                stale.add(new ResourceRecord(record, STALE_TTL));
+        return stale;
+    }
+
+    /** Loads a snapshot saved by saveSnapshot. Nodes of the snapshot are only restored when
+     * they are first looked up, through getCachedResults, peekCachedResults or findZoneCut.
+     * Records that expired since the snapshot was saved are dropped; records that are already
+     * cached are replaced only if the saved record expires later.
+     *
+     * @param file The snapshot file.
+     * @return The number of nodes in the snapshot that have not expired.
+     * @throws IOException If the file could not be read, or is not a valid snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        DNSCacheSnapshot snapshot = DNSCacheSnapshot.open(file);
+        restoring = snapshot.size() > 0 ? snapshot : null;
+        return snapshot.size();
+    }
+
+    /** Saves the records of the cache that have not expired to a snapshot file. Nodes of a
+     * loaded snapshot that were not restored yet are saved too, copied from the loaded file.
+     *
+     * @param file The snapshot file.
+     * @return The number of nodes saved.
+     * @throws IOException If the file could not be written.
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        DNSCacheSnapshot snapshot = restoring;
+        int count = DNSCacheSnapshot.write(this, file, snapshot);
+        if (snapshot != null)
+            stopRestoringIfEmpty(snapshot);
+        return count;
+    }
+
+    /** Returns whether a node has records in the cache, expired or not.
+     *
+     * @param node The node.
+     * @return true if the node is in the cache, false otherwise.
+     */
+    boolean isCached(DNSNode node) {
+        return cachedResults.containsKey(node);
+    }
+
+    /** Saves a snapshot of the cache to a file periodically, replacing any earlier schedule.
+     * Failures are reported on the standard error and retried at the next period.
+     *
+     * @param file            The snapshot file, or null to stop saving.
+     * @param intervalSeconds The time between two snapshots, in seconds.
+     */
+    public synchronized void setSnapshotSchedule(Path file, long intervalSeconds) {
+        if (snapshotTask != null)
+            snapshotTask.cancel(false);
+        snapshotTask = null;
+        if (file == null)
+            return;
+        snapshotTask = maintenanceThread.scheduleWithFixedDelay(() -> {
+            try {
+                saveSnapshot(file);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Saving cache snapshot failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Restores a node from the snapshot being loaded, if there is one and it has the node.
+     *
+     * @param node The node that was not found in the cache.
+     * @return true if records of the node were restored, false otherwise.
+     */
+    private boolean restoreFromSnapshot(DNSNode node) {
+        DNSCacheSnapshot snapshot = restoring;
+        if (snapshot == null)
+            return false;
+        List<ResourceRecord> records = snapshot.take(node);
+        for (ResourceRecord record : records)
+            addResult(record);
+        stopRestoringIfEmpty(snapshot);
+        return !records.isEmpty();
+    }
+
+    /** Restores the NS records of a name and of each of its parent domains that are in the
+     * snapshot being loaded and not in the cache, so that findZoneCut sees their zones.
+     *
+     * @param hostName The name whose zone cut is looked for.
+     */
+    private void restoreZonesFromSnapshot(String hostName) {
+        DNSCacheSnapshot snapshot = restoring;
+        if (snapshot == null || !snapshot.hasZones())
+            return;
+        for (int start = 0; start < hostName.length(); ) {
+            DNSNode node = new DNSNode(hostName.substring(start), RecordType.NS);
+            if (!cachedResults.containsKey(node))
+                restoreFromSnapshot(node);
+            start = hostName.indexOf('.', start) + 1;
+            if (start == 0)
+                break;
+        }
+    }
+
+    /** Stops looking in a snapshot once every node of it was taken.
+     *
+     * @param snapshot The snapshot being loaded.
+     */
+    private void stopRestoringIfEmpty(DNSCacheSnapshot snapshot) {
+        if (snapshot.size() == 0 && restoring == snapshot)
+            restoring = null;
+    }
+
+    /** Sets how long records are kept after they expire, to be served stale. Records that
+     * already expired are removed according to the grace period in force when they expired.
+     *
+     * @param seconds The grace period, in seconds, or 0 to remove records once they expire.
+     */
+    public void setStaleGracePeriod(long seconds) {
+        this.staleGraceMillis = Math.max(0, seconds) * 1000;
+    }
+
+    public long getStaleGracePeriod() {
+        return staleGraceMillis / 1000;
+    }
+
+    /** Registers the action that refreshes popular nodes before they expire. Only one listener
+     * can be registered; a new one replaces the previous one.
+     *
+     * @param listener Action given each node that should be refreshed, or null for none.
+     */
+    public void setRefreshListener(Consumer<DNSNode> listener) {
+        this.refreshListener = listener;
+    }
+
+    /** Sets when a node is popular and old enough to be refreshed.
+     *
+     * @param share            The share of the TTL a record must have used up, between 0 and 1.
+     * @param minimumFrequency How often the node must have been looked up recently, between 1
+     *                         and 15.
+     */
+    public void setRefreshThreshold(double share, int minimumFrequency) {
+        this.refreshShare = share;
+        this.refreshMinimumFrequency = minimumFrequency;
+    }
+
+    /** Gives a node to the refresh listener if one of its records has used up its share of
+     * TTL and the node is looked up often. The policy is not waited on: if it is busy, a later
+     * lookup of the node will check again.
+     *
+     * @param node    The node that was looked up.
+     * @param results The valid records of the node.
+     */
+    private void checkRefresh(DNSNode node, Set<ResourceRecord> results) {
+        long now = System.currentTimeMillis();
+        boolean nearExpiration = false;
+        for (ResourceRecord record : results)
+            if (record.getOriginalTTL() > 0 && record.isNearExpiration(now, refreshShare))
+                nearExpiration = true;
+        if (!nearExpiration || !policyLock.tryLock())
+            return;
+
+        int frequency;
+        try {
+            drainBuffers();
+            frequency = lookupSketch.frequency(node);
+        } finally {
+            policyLock.unlock();
+        }
+        Consumer<DNSNode> listener = refreshListener;
+        if (frequency >= refreshMinimumFrequency && listener != null)
+            listener.accept(node);
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -51,42 +386,388 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        Map<ResourceRecord, ResourceRecord> updated = cachedResults.compute(record.getNode(),
+                                                                            (node, results) -> {
+            if (results == null)
+                return Collections.singletonMap(record, record);
+
+            ResourceRecord oldRecord = results.get(record);
+            if (oldRecord != null && !oldRecord.expiresBefore(record))
+                return results;
+
+            Map<ResourceRecord, ResourceRecord> copy = new HashMap<>(results);
+            copy.remove(record);
+            copy.put(record, record);
+            return Collections.unmodifiableMap(copy);
+        });
+
+        // A record that replaced an older one gets its own expiration; the older record's
+        // expiration finds it is no longer cached and does nothing.
+        if (updated.get(record) != record)
+            return;
+        scheduleRemoval(record);
+        // The zone cut must be found as soon as this method returns, so it is not buffered.
+        if (record.getType() == RecordType.NS)
+            delegations.addNameServer(record);
+
+        writeBuffer.add(record);
+        tryDrainBuffers();
+    }
+
+    /** Tells the policy about a record that was added to the cache, and evicts nodes if the
+     * cache is over its capacity. Must be called with the policy lock held.
+     *
+     * @param record The record.
+     */
+    private void applyWrite(ResourceRecord record) {
+        // Another thread may have evicted the node since it was updated. Nodes only leave
+        // the map with the lock held, so the policy then no longer tracks the node either.
+        Map<ResourceRecord, ResourceRecord> current = cachedResults.get(record.getNode());
+        if (current == null) {
+            // The zone cut may have been added after the node was evicted.
+            if (record.getType() == RecordType.NS)
+                delegations.removeZone(record.getHostName());
+            return;
+        }
+        // The zone cut may have been removed by an eviction that raced with the write.
+        if (record.getType() == RecordType.NS && current.get(record) == record)
+            delegations.addNameServer(record);
+        policy.recordWrite(record.getNode(), estimateWeight(record.getNode(), current));
+        for (DNSNode node : policy.evict())
+            removeNode(node);
+    }
+
+    /** Removes a node evicted by the policy, and its zone cut if it is a node of NS records.
+     * Must be called with the policy lock held.
+     *
+     * @param node The node to remove.
+     */
+    private void removeNode(DNSNode node) {
+        cachedResults.remove(node);
+        if (node.getType() == RecordType.NS)
+            delegations.removeZone(node.getHostName());
+    }
+
+    /** Finds the deepest zone of a name, or of one of its parent domains, whose name servers
+     * are cached. The read is recorded for the NS records of the zone found, so that zones
+     * used all the time are kept in the cache; it does not count as a lookup of the NS records,
+     * so they are only refreshed if they are looked up themselves. Zones of the name that are
+     * only in a loaded snapshot are restored first.
+     *
+     * @param hostName The name.
+     * @return The zone cut, or null if no zone of the name is cached.
+     */
+    public DNSDelegationIndex.Delegation findZoneCut(String hostName) {
+        restoreZonesFromSnapshot(hostName);
+        DNSDelegationIndex.Delegation delegation = delegations.findZoneCut(hostName);
+        if (delegation != null)
+            recordRead(delegation.getNode(), false);
+        return delegation;
+    }
+
+    /** Adds a negative result to the cache. A name error means the host name does not exist
+     * at all, and applies to queries of every type; otherwise only the type of the node has no
+     * records. The TTL is capped at three hours, as suggested by RFC 2308. Negative results
+     * are not added once there are as many of them as the cache may hold nodes.
+     *
+     * @param node      The query that got a negative answer.
+     * @param nameError true if the server answered that the name does not exist.
+     * @param ttl       The negative TTL, in seconds.
+     */
+    public void addNegativeResult(DNSNode node, boolean nameError, long ttl) {
+        if (ttl <= 0)
+            return;
+
+        ConcurrentHashMap<DNSNode, Long> negativeResults = nameError ? nonExistentNames
+                                                                    : noDataNodes;
+        if (negativeResults.size() >= getMaximumEntries())
+            return;
+
+        DNSNode key = nameError ? new DNSNode(node.getHostName(), RecordType.OTHER) : node;
+        Long expirationTime = System.currentTimeMillis() +
+                              Math.min(ttl, MAXIMUM_NEGATIVE_TTL) * 1000;
+        negativeResults.put(key, expirationTime);
+        expiryWheel.schedule(expirationTime, () -> negativeResults.remove(key, expirationTime));
+    }
+
+    /** Returns true if the cache has an unexpired negative result for a query, either because
+     * its host name does not exist or because it has no records of its type.
+     *
+     * @param node The query to check.
+     * @return true if the query is known to have no results, false otherwise.
+     */
+    public boolean hasNegativeResult(DNSNode node) {
+        if (nonExistentNames.isEmpty() && noDataNodes.isEmpty())
+            return false;
+
+        long now = System.currentTimeMillis();
+        Long expirationTime = noDataNodes.get(node);
+        if (expirationTime != null && expirationTime > now)
+            return true;
+        expirationTime = nonExistentNames.get(new DNSNode(node.getHostName(), RecordType.OTHER));
+        return expirationTime != null && expirationTime > now;
+    }
+
+    /** Returns true if the cache has an unexpired name error for a host name, that is, if the
+     * name is known not to exist at all.
+     *
+     * @param hostName The host name to check.
+     * @return true if the name is known not to exist, false otherwise.
+     */
+    public boolean isNonExistentName(String hostName) {
+        if (nonExistentNames.isEmpty())
+            return false;
+        Long expirationTime = nonExistentNames.get(new DNSNode(hostName, RecordType.OTHER));
+        return expirationTime != null && expirationTime > System.currentTimeMillis();
+    }
+
+    /** Changes the capacity of the cache. If the cache is over the new capacity, nodes are
+     * evicted right away.
+     *
+     * @param maximumEntries The maximum number of nodes kept in the cache.
+     * @param maximumBytes   The maximum estimated size of the cached records, in bytes.
+     */
+    public void setCapacity(long maximumEntries, long maximumBytes) {
+        policyLock.lock();
+        try {
+            drainBuffers();
+            policy.setMaximum(maximumEntries, maximumBytes);
+            this.maximumEntries = policy.getMaximumEntries();
+            lookupSketch.ensureCapacity(policy.getMaximumEntries());
+            for (DNSNode node : policy.evict())
+                removeNode(node);
+        } finally {
+            policyLock.unlock();
         }
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    public long getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    public long getMaximumBytes() {
+        policyLock.lock();
+        try {
+            return policy.getMaximumWeight();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /** Returns the number of nodes in the cache.
+     *
+     * @return The number of cached nodes.
+     */
+    public int size() {
+        return cachedResults.size();
+    }
+
+    /** Returns the estimated size of the cached records.
+     *
+     * @return The estimated size, in bytes.
+     */
+    public long estimatedBytes() {
+        policyLock.lock();
+        try {
+            drainBuffers();
+            return policy.weightedSize();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /** Records a read of a node for the eviction policy, and a lookup of the node for
+     * refreshing it if the read was one. The read is buffered in the stripe of the current
+     * thread, and the buffers are applied to the policy by whichever thread finds its stripe
+     * long enough and the policy free.
+     *
+     * @param node   The node that was read.
+     * @param lookup true if the read was a lookup through getCachedResults.
+     */
+    private void recordRead(DNSNode node, boolean lookup) {
+        long id = Thread.currentThread().getId();
+        ReadBuffer buffer = readBuffers[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) &
+                                        (READ_BUFFER_STRIPES - 1)];
+        int count = buffer.count.incrementAndGet();
+        if (count > READ_BUFFER_SIZE) {
+            buffer.count.decrementAndGet();
+            return;
+        }
+        (lookup ? buffer.lookups : buffer.reads).add(node);
+        if (count >= READ_BUFFER_DRAIN_THRESHOLD)
+            tryDrainBuffers();
+    }
+
+    /** Applies the buffered reads and writes to the policy if no other thread holds the policy
+     * lock. A thread that finds the lock taken leaves its writes to the thread holding it,
+     * which looks for writes again once it has let go of the lock, so no write is left behind.
+     */
+    private void tryDrainBuffers() {
+        do {
+            if (!policyLock.tryLock())
+                return;
+            try {
+                drainBuffers();
+            } finally {
+                policyLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    /** Applies the buffered reads and writes to the policy. Must be called with the policy
+     * lock held.
+     */
+    private void drainBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            DNSNode node;
+            while ((node = buffer.reads.poll()) != null) {
+                buffer.count.decrementAndGet();
+                policy.recordAccess(node);
+            }
+            while ((node = buffer.lookups.poll()) != null) {
+                buffer.count.decrementAndGet();
+                policy.recordAccess(node);
+                lookupSketch.increment(node);
+            }
+        }
+        ResourceRecord record;
+        while ((record = writeBuffer.poll()) != null)
+            applyWrite(record);
+    }
+
+    /** Estimates the memory used by a node and its records.
+     *
+     * @param node    The cached node.
+     * @param results The records of the node.
+     * @return The estimated size, in bytes.
+     */
+    private static long estimateWeight(DNSNode node, Map<ResourceRecord, ResourceRecord> results) {
+        long weight = NODE_OVERHEAD + 2L * node.getHostName().length();
+        for (ResourceRecord record : results.keySet()) {
+            weight += RECORD_OVERHEAD + 2L * record.getTextResult().length();
+            if (record.getInetResult() != null)
+                weight += INET_OVERHEAD;
+        }
+        return weight;
+    }
+
+    /** Asks the expiry wheel to remove a record once it has expired and its stale grace period
+     * has passed.
+     *
+     * @param record The record to remove.
+     */
+    private void scheduleRemoval(ResourceRecord record) {
+        expiryWheel.schedule(record.getExpirationTime() + staleGraceMillis,
+                             () -> removeExpired(record));
+    }
+
+    private boolean isWithinStaleGrace(ResourceRecord record, long now) {
+        return now < record.getExpirationTime() + staleGraceMillis;
+    }
+
+    /** Removes a record from the cache if it is still cached and its stale grace period has
+     * passed. Called by the expiry wheel at the end of the grace period; if the grace period
+     * was made longer in the meantime, the removal is scheduled again.
+     *
+     * @param record The record to remove.
+     */
+    private void removeExpired(ResourceRecord record) {
+        long now = System.currentTimeMillis();
+        if (isWithinStaleGrace(record, now)) {
+            scheduleRemoval(record);
+            return;
+        }
+        cachedResults.computeIfPresent(record.getNode(), (node, results) -> {
+            if (results.get(record) != record)
+                return results;
+            if (results.size() == 1)
+                return null;
+
+            Map<ResourceRecord, ResourceRecord> copy = new HashMap<>(results);
+            copy.remove(record);
+            return Collections.unmodifiableMap(copy);
+        });
+
+        policyLock.lock();
+        try {
+            // The node may have been added again since; the policy follows the map as it is now.
+            Map<ResourceRecord, ResourceRecord> current = cachedResults.get(record.getNode());
+            if (current == null) {
+                policy.recordRemoval(record.getNode());
+                if (record.getType() == RecordType.NS)
+                    delegations.removeZone(record.getHostName());
+            } else {
+                policy.recordWeight(record.getNode(), estimateWeight(record.getNode(), current));
+            }
+        } finally {
+            policyLock.unlock();
+        }
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Queries are visited in order, and
+     * expired records are left out of the set passed to the action.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : sortedNodes()) {
+            Set<ResourceRecord> results = peekResults(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Queries are visited in order, and
+     * expired records are skipped.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (DNSNode node : sortedNodes())
+            peekResults(node).forEach(record -> consumer.accept(node, record));
+    }
+
+    /** Returns the valid records of a node without counting it as a use of the node, so that
+     * going over the whole cache does not change which nodes are popular.
+     *
+     * @param node The node whose records are wanted.
+     * @return An unmodifiable set of the records of the node that are still valid.
+     */
+    private Set<ResourceRecord> peekResults(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        return results == null ? Collections.emptySet() : validRecords(results);
+    }
+
+    /** Returns the records of a node that have not expired yet. If all of them are still
+     * valid, which is the common case, the cached set itself is returned without copying.
+     *
+     * @param results The cached records of a node.
+     * @return An unmodifiable set of the records that are still valid.
+     */
+    private static Set<ResourceRecord> validRecords(Map<ResourceRecord, ResourceRecord> results) {
+        long now = System.currentTimeMillis();
+        for (ResourceRecord record : results.keySet()) {
+            if (!record.isStillValid(now)) {
+                Set<ResourceRecord> valid = new HashSet<>();
+                for (ResourceRecord candidate : results.keySet())
+                    if (candidate.isStillValid(now))
+                        valid.add(candidate);
+                return Collections.unmodifiableSet(valid);
+            }
         }
+        return Collections.unmodifiableSet(results.keySet());
+    }
+
+    /** Returns a snapshot of the nodes in the cache, in the order defined by DNSNode.
+     *
+     * @return The sorted list of cached nodes.
+     */
+    private List<DNSNode> sortedNodes() {
+        List<DNSNode> nodes = new ArrayList<>(cachedResults.keySet());
+        Collections.sort(nodes);
+        return nodes;
     }
 
 }
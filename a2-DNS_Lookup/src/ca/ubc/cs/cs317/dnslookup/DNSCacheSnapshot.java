@@ -0,0 +1,305 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/** A snapshot of the records in a DNS cache, saved to a file so that a restarted cache does
+ * not have to start from the root server again. Expiration times are saved as absolute times,
+ * so a record restored later only lives for what was left of its TTL.
+ *
+ * The file is a header (magic number and version) followed by one entry per node, and ends
+ * with a name length of 0xFFFF. All numbers are big-endian. Each entry is laid out as:
+ *
+ *   name length (2 bytes), host name (UTF-8), record type code (2 bytes),
+ *   record count (2 bytes), and for each record:
+ *     expiration time in ms since the epoch (8 bytes), original TTL in seconds (4 bytes),
+ *     result kind (1 byte, 0 for text and 1 for address), result length (2 bytes),
+ *     result (UTF-8 text, or the bytes of the address).
+ *
+ * A snapshot is opened by mapping the file in memory and reading only the name and type of
+ * each entry. The records of an entry are only decoded when the entry is taken, so a large
+ * snapshot is ready to use as soon as its index is built. Entries that were never taken are
+ * copied as they are when the cache is saved again, without decoding them.
+ */
+public class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final short VERSION = 1;
+    private static final int END_OF_ENTRIES = 0xFFFF;
+    private static final byte TEXT_RESULT = 0;
+    private static final byte INET_RESULT = 1;
+
+    private final ByteBuffer buffer;
+    private final ConcurrentHashMap<DNSNode, Integer> index = new ConcurrentHashMap<>();
+    // The number of entries of type NS left in the index.
+    private final AtomicInteger zoneCount = new AtomicInteger();
+
+    private DNSCacheSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /** Writes the records of a cache to a file. The snapshot is written to a temporary file
+     * first and then moved over the target, so a crash while writing never leaves a partial
+     * snapshot behind.
+     *
+     * @param cache The cache to save. Only records that have not expired are saved.
+     * @param file  The file to write.
+     * @return The number of nodes saved.
+     * @throws IOException If the file could not be written.
+     */
+    public static int write(DNSCache cache, Path file) throws IOException {
+        return write(cache, file, null);
+    }
+
+    /** Writes the records of a cache to a file, along with the entries of an earlier snapshot
+     * that were not taken yet. Entries of the earlier snapshot whose node is in the cache, or
+     * whose records have all expired, are dropped from it instead of being written.
+     *
+     * @param cache      The cache to save. Only records that have not expired are saved.
+     * @param file       The file to write.
+     * @param unrestored The snapshot the cache is being restored from, or null.
+     * @return The number of nodes saved.
+     * @throws IOException If the file could not be written.
+     */
+    public static int write(DNSCache cache, Path file, DNSCacheSnapshot unrestored)
+            throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] count = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            // Entries copied first are replaced by those of the cache when the file is opened,
+            // so a node taken while the cache is written is not lost.
+            if (unrestored != null)
+                count[0] += unrestored.copyEntries(out, cache::isCached);
+
+            IOException[] failure = {null};
+            cache.forEachNode((node, results) -> {
+                if (failure[0] != null)
+                    return;
+                try {
+                    writeEntry(out, node, results);
+                    count[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null)
+                throw failure[0];
+            out.writeShort(END_OF_ENTRIES);
+        }
+
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count[0];
+    }
+
+    private static void writeEntry(DataOutputStream out, DNSNode node,
+                                   Set<ResourceRecord> results) throws IOException {
+        writeEntryHeader(out, node);
+        out.writeShort(results.size());
+        for (ResourceRecord record : results) {
+            out.writeLong(record.getExpirationTime());
+            out.writeInt((int) record.getOriginalTTL());
+            byte[] result;
+            if (record.getInetResult() != null) {
+                out.writeByte(INET_RESULT);
+                result = record.getInetResult().getAddress();
+            } else {
+                out.writeByte(TEXT_RESULT);
+                result = record.getTextResult().getBytes(StandardCharsets.UTF_8);
+            }
+            out.writeShort(result.length);
+            out.write(result);
+        }
+    }
+
+    private static void writeEntryHeader(DataOutputStream out, DNSNode node) throws IOException {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeShort(node.getType().getCode());
+    }
+
+    /** Copies the entries that have not been taken yet to another snapshot, without decoding
+     * their records. Entries that are no longer needed are taken out of the snapshot instead.
+     *
+     * @param out      The snapshot being written.
+     * @param isCached Tells whether a node is in the cache, so its entry is out of date.
+     * @return The number of entries copied.
+     * @throws IOException If the entries could not be written.
+     */
+    private int copyEntries(DataOutputStream out, Predicate<DNSNode> isCached)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<DNSNode, Integer> entry : index.entrySet()) {
+            DNSNode node = entry.getKey();
+            int offset = entry.getValue();
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            if (skipRecords(in) <= now || isCached.test(node)) {
+                remove(node, offset);
+                continue;
+            }
+
+            writeEntryHeader(out, node);
+            byte[] records = new byte[in.position() - offset];
+            in.position(offset);
+            in.get(records);
+            out.write(records);
+            count++;
+        }
+        return count;
+    }
+
+    /** Opens a snapshot file and indexes its entries. Entries whose records have all expired
+     * are left out of the index.
+     *
+     * @param file The file to read.
+     * @return The opened snapshot.
+     * @throws IOException If the file could not be read, or is not a valid snapshot.
+     */
+    public static DNSCacheSnapshot open(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        DNSCacheSnapshot snapshot = new DNSCacheSnapshot(mapped);
+        try {
+            snapshot.buildIndex(System.currentTimeMillis());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt cache snapshot " + file, e);
+        }
+        return snapshot;
+    }
+
+    /** Reads the name and type of each entry, skipping over its records.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @throws IOException If the header of the file is not valid.
+     */
+    private void buildIndex(long now) throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        if (in.remaining() < 6 || in.getInt() != MAGIC)
+            throw new IOException("Not a cache snapshot");
+        if (in.getShort() != VERSION)
+            throw new IOException("Unsupported cache snapshot version");
+
+        int nameLength;
+        while ((nameLength = in.getShort() & 0xFFFF) != END_OF_ENTRIES) {
+            byte[] name = new byte[nameLength];
+            in.get(name);
+            RecordType type = RecordType.getByCode(in.getShort() & 0xFFFF);
+            int recordsOffset = in.position();
+            if (skipRecords(in) <= now)
+                continue;
+            DNSNode node = new DNSNode(new String(name, StandardCharsets.UTF_8), type);
+            if (index.put(node, recordsOffset) == null && type == RecordType.NS)
+                zoneCount.incrementAndGet();
+        }
+    }
+
+    /** Skips over the records of an entry.
+     *
+     * @param in A buffer positioned at the record count of the entry.
+     * @return The latest expiration time of the records, in milliseconds since the epoch.
+     */
+    private static long skipRecords(ByteBuffer in) {
+        int recordCount = in.getShort() & 0xFFFF;
+        long latestExpiration = 0;
+        for (int i = 0; i < recordCount; i++) {
+            latestExpiration = Math.max(latestExpiration, in.getLong());
+            in.position(in.position() + 5);
+            int resultLength = in.getShort() & 0xFFFF;
+            in.position(in.position() + resultLength);
+        }
+        return latestExpiration;
+    }
+
+    private boolean remove(DNSNode node, int offset) {
+        if (!index.remove(node, offset))
+            return false;
+        if (node.getType() == RecordType.NS)
+            zoneCount.decrementAndGet();
+        return true;
+    }
+
+    /** Returns the number of entries that have not been taken yet.
+     *
+     * @return The number of entries left.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /** Returns whether entries of type NS have not been taken yet, so that zone cuts may still
+     * be restored from the snapshot.
+     *
+     * @return true if NS entries are left, false otherwise.
+     */
+    public boolean hasZones() {
+        return zoneCount.get() > 0;
+    }
+
+    /** Takes the entry of a node out of the snapshot and decodes its records. Each entry can
+     * only be taken once, so two threads never both restore the same node.
+     *
+     * @param node The node whose records are wanted.
+     * @return The records of the node that have not expired, or an empty list if the snapshot
+     *         has no entry for the node or it was already taken.
+     */
+    public List<ResourceRecord> take(DNSNode node) {
+        Integer offset = index.get(node);
+        if (offset == null || !remove(node, offset))
+            return Collections.emptyList();
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        int recordCount = in.getShort() & 0xFFFF;
+        long now = System.currentTimeMillis();
+        List<ResourceRecord> records = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            long expirationTime = in.getLong();
+            long originalTTL = in.getInt() & 0xFFFFFFFFL;
+            byte kind = in.get();
+            byte[] result = new byte[in.getShort() & 0xFFFF];
+            in.get(result);
+            if (expirationTime <= now)
+                continue;
+
+            if (kind == INET_RESULT) {
+                try {
+                    InetAddress address = InetAddress.getByAddress(result);
+                    records.add(new ResourceRecord(node, originalTTL, expirationTime,
+                                                   address.getHostAddress(), address));
+                } catch (UnknownHostException e) {
+                    // Not an IPv4 or IPv6 address, the record is dropped.
+                }
+            } else {
+                records.add(new ResourceRecord(node, originalTTL, expirationTime,
+                                               new String(result, StandardCharsets.UTF_8),
+                                               null));
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,325 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+
+/** Finds the deepest zone cut known for a name in a single pass over its labels. The index is a
+ * trie of the zones that have name servers in the cache, keyed by label from the root down, so
+ * "www.cs.ubc.ca" is found by following "ca", "ubc", "cs" and "www". Each zone cut holds the
+ * NS records of the zone, and the addresses of its name servers once they have been resolved.
+ *
+ * Labels are stored lowercase and interned, so a label used by many names is kept once. A
+ * lookup compares the labels of the name in place, so it allocates nothing and does not take
+ * a lock. Changes are made under a lock, and are published to lookups through the volatile
+ * fields of the trie; a lookup that races with a change sees the trie either before or after
+ * it.
+ *
+ * The index is kept by DNSCache, which adds NS records to it as they are cached and removes a
+ * zone once its NS records leave the cache. Expired NS records are ignored by lookups until
+ * then.
+ */
+public class DNSDelegationIndex {
+
+    private static final int INITIAL_TABLE_SIZE = 4;
+
+    private final Node root = new Node(null, "");
+    // Marks a slot of a child table whose child was removed, so that probing goes on past it.
+    private static final Node REMOVED = new Node(null, "");
+
+    /** A zone cut: the name servers of a zone, and their addresses once known.
+     */
+    public static final class Delegation {
+        private final DNSNode node;
+        private final Set<ResourceRecord> nameServers;
+        private volatile Addresses addresses;
+
+        private Delegation(DNSNode node, Set<ResourceRecord> nameServers) {
+            this.node = node;
+            this.nameServers = nameServers;
+        }
+
+        /** Returns the name of the zone.
+         *
+         * @return The zone, as written in its NS records.
+         */
+        public String getZone() {
+            return node.getHostName();
+        }
+
+        /** Returns the node of the NS records of the zone in the cache.
+         *
+         * @return The node, of type NS.
+         */
+        public DNSNode getNode() {
+            return node;
+        }
+
+        /** Returns the NS records of the zone that have not expired.
+         *
+         * @return An unmodifiable set of records.
+         */
+        public Set<ResourceRecord> getNameServers() {
+            long now = System.currentTimeMillis();
+            for (ResourceRecord record : nameServers) {
+                if (!record.isStillValid(now)) {
+                    Set<ResourceRecord> valid = new LinkedHashSet<>();
+                    for (ResourceRecord server : nameServers)
+                        if (server.isStillValid(now))
+                            valid.add(server);
+                    return Collections.unmodifiableSet(valid);
+                }
+            }
+            return nameServers;
+        }
+
+        /** Returns the addresses of the name servers of the zone, as last set, if none of them
+         * has expired since.
+         *
+         * @return An unmodifiable list of type A records, or null if none are known.
+         */
+        public List<ResourceRecord> getAddresses() {
+            Addresses known = addresses;
+            if (known == null || System.currentTimeMillis() >= known.expirationTime)
+                return null;
+            return known.records;
+        }
+
+        /** Remembers the addresses of the name servers of the zone, until the first of them
+         * expires.
+         *
+         * @param addresses Type A records of the name servers.
+         */
+        public void setAddresses(List<ResourceRecord> addresses) {
+            long expirationTime = Long.MAX_VALUE;
+            for (ResourceRecord address : addresses)
+                expirationTime = Math.min(expirationTime, address.getExpirationTime());
+            this.addresses = new Addresses(
+                    Collections.unmodifiableList(new ArrayList<>(addresses)), expirationTime);
+        }
+
+        private boolean hasNameServers(long now) {
+            for (ResourceRecord record : nameServers)
+                if (record.isStillValid(now))
+                    return true;
+            return false;
+        }
+    }
+
+    /** The addresses of the name servers of a zone, and when the first of them expires.
+     */
+    private static final class Addresses {
+        final List<ResourceRecord> records;
+        final long expirationTime;
+
+        Addresses(List<ResourceRecord> records, long expirationTime) {
+            this.records = records;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /** A label of the trie. Children are kept in an open-addressing table, indexed by the
+     * case-insensitive hash of their label; the table is replaced, never resized in place.
+     */
+    private static final class Node {
+        final Node parent;
+        final String label;
+        volatile Node[] children;
+        volatile Delegation delegation;
+        // Guarded by the index.
+        int childCount;
+        int removedCount;
+
+        Node(Node parent, String label) {
+            this.parent = parent;
+            this.label = label;
+        }
+    }
+
+    /** Finds the deepest zone of a name, or of one of its parent domains, that has name
+     * servers which have not expired.
+     *
+     * @param hostName The name.
+     * @return The zone cut, or null if no zone of the name is known and the search must
+     *         start at the root.
+     */
+    public Delegation findZoneCut(String hostName) {
+        long now = System.currentTimeMillis();
+        Node node = root;
+        Delegation deepest = null;
+        int end = hostName.length();
+        if (end > 0 && hostName.charAt(end - 1) == '.')
+            end--;
+
+        while (end > 0) {
+            int start = hostName.lastIndexOf('.', end - 1) + 1;
+            node = findChild(node, hostName, start, end);
+            if (node == null)
+                break;
+            Delegation delegation = node.delegation;
+            if (delegation != null && delegation.hasNameServers(now))
+                deepest = delegation;
+            end = start - 1;
+        }
+        return deepest;
+    }
+
+    /** Adds an NS record to the zone it belongs to, replacing an equal record, and dropping
+     * the records of the zone that have expired.
+     *
+     * @param record A record of type NS.
+     */
+    public synchronized void addNameServer(ResourceRecord record) {
+        if (record.getType() != RecordType.NS)
+            return;
+        Node node = root;
+        String hostName = record.getHostName();
+        int end = hostName.length();
+        if (end > 0 && hostName.charAt(end - 1) == '.')
+            end--;
+        while (end > 0) {
+            int start = hostName.lastIndexOf('.', end - 1) + 1;
+            node = findOrAddChild(node, hostName, start, end);
+            end = start - 1;
+        }
+        if (node == root)
+            return;
+
+        long now = System.currentTimeMillis();
+        Delegation old = node.delegation;
+        Set<ResourceRecord> nameServers = new LinkedHashSet<>();
+        if (old != null)
+            for (ResourceRecord server : old.nameServers)
+                if (server.isStillValid(now) && !server.equals(record))
+                    nameServers.add(server);
+        nameServers.add(record);
+        node.delegation = new Delegation(record.getNode(),
+                                         Collections.unmodifiableSet(nameServers));
+    }
+
+    /** Removes a zone cut, and the labels of the trie that no longer lead to one.
+     *
+     * @param zone The name of the zone.
+     */
+    public synchronized void removeZone(String zone) {
+        Node node = root;
+        int end = zone.length();
+        if (end > 0 && zone.charAt(end - 1) == '.')
+            end--;
+        while (end > 0 && node != null) {
+            int start = zone.lastIndexOf('.', end - 1) + 1;
+            node = findChild(node, zone, start, end);
+            end = start - 1;
+        }
+        if (node == null || node == root)
+            return;
+
+        node.delegation = null;
+        while (node != root && node.delegation == null && node.childCount == 0) {
+            removeChild(node.parent, node);
+            node = node.parent;
+        }
+    }
+
+    private static int hash(String name, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + Character.toLowerCase(name.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    /** Finds the child of a node for a label of a name.
+     *
+     * @param node  The node.
+     * @param name  The name.
+     * @param start Where the label begins in the name.
+     * @param end   Where the label ends in the name.
+     * @return The child, or null if the node has no child for the label.
+     */
+    private static Node findChild(Node node, String name, int start, int end) {
+        Node[] table = node.children;
+        if (table == null)
+            return null;
+        int length = end - start;
+        int mask = table.length - 1;
+        for (int i = hash(name, start, end) & mask; ; i = (i + 1) & mask) {
+            Node child = table[i];
+            if (child == null)
+                return null;
+            if (child != REMOVED && child.label.length() == length &&
+                child.label.regionMatches(true, 0, name, start, length))
+                return child;
+        }
+    }
+
+    /** Finds the child of a node for a label, adding it if there is none. Must be called with
+     * the lock held.
+     */
+    private Node findOrAddChild(Node node, String name, int start, int end) {
+        Node child = findChild(node, name, start, end);
+        if (child != null)
+            return child;
+
+        child = new Node(node, name.substring(start, end).toLowerCase(Locale.ROOT).intern());
+        Node[] table = node.children;
+        // Keep at least half of the slots empty, so that probing is short and always ends.
+        if (table == null || (node.childCount + node.removedCount + 1) * 2 > table.length) {
+            int size = INITIAL_TABLE_SIZE;
+            while ((node.childCount + 1) * 2 > size)
+                size *= 2;
+            Node[] resized = new Node[size];
+            if (table != null)
+                for (Node existing : table)
+                    if (existing != null && existing != REMOVED)
+                        insert(resized, existing);
+            table = resized;
+            node.removedCount = 0;
+        } else if (insertIntoRemoved(table, child)) {
+            node.removedCount--;
+            node.childCount++;
+            node.children = table;
+            return child;
+        }
+        insert(table, child);
+        node.childCount++;
+        // Publish the table again, so that lookups see the new child.
+        node.children = table;
+        return child;
+    }
+
+    private static void insert(Node[] table, Node child) {
+        int mask = table.length - 1;
+        int i = hash(child.label, 0, child.label.length()) & mask;
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = child;
+    }
+
+    /** Puts a child in the first removed slot of its probe sequence, if there is one before
+     * the first empty slot.
+     */
+    private static boolean insertIntoRemoved(Node[] table, Node child) {
+        int mask = table.length - 1;
+        for (int i = hash(child.label, 0, child.label.length()) & mask; table[i] != null;
+             i = (i + 1) & mask) {
+            if (table[i] == REMOVED) {
+                table[i] = child;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void removeChild(Node node, Node child) {
+        Node[] table = node.children;
+        int mask = table.length - 1;
+        for (int i = hash(child.label, 0, child.label.length()) & mask; table[i] != null;
+             i = (i + 1) & mask) {
+            if (table[i] == child) {
+                table[i] = REMOVED;
+                node.childCount--;
+                node.removedCount++;
+                node.children = table;
+                return;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.lang.NullPointerException;
+import java.nio.ByteBuffer;
 /** Used to parse and store information in a DNS packet's header
 */
 public class DNSHeader {
@@ -32,51 +33,47 @@ public class DNSHeader {
     private short NSCOUNT; // how many authority records in the packet
     private short ARCOUNT; // how many additional records in the packet
 
-    /**
-     * Read a short integer.
-     *
-     * @param data   Arrays of bytes of data.
-     * @param offset Where the short integer begins.
-     *
-     * @return Return the short integer
-     */
-    private static short getShort(byte [] data, int offset) {
-        short ret = (short) (((data[offset] & 0xFF) << 8) + 
-                              (data[offset + 1] & 0xFF));
-        return ret;
-    }
-
     /** Construct a DNSHeader instance with 4 bytes.
      *  @param headerByte 4-byte-long byte array corresponds to header
      */
     public DNSHeader(byte [] headerByte) {
-        if (headerByte.length < 12)
+        this(ByteBuffer.wrap(headerByte), 0);
+    }
+
+    /** Construct a DNSHeader instance from 12 bytes of a buffer, without
+     *  changing the position of the buffer.
+     *  @param buffer Buffer holding the message.
+     *  @param offset Index in the buffer where the header begins.
+     */
+    public DNSHeader(ByteBuffer buffer, int offset) {
+        if (offset + 12 > buffer.limit())
             throw new NullPointerException("Constructing DNSHeader");
+        byte flags = buffer.get(offset + 2);
+        byte codes = buffer.get(offset + 3);
         // read transaction ID
-        ID = (short) ((((int)headerByte[0]&0xFF) << 8) + 
-             ((int)headerByte[1]&0xFF));
+        ID = buffer.getShort(offset);
         // read QR
-        QR = (headerByte[2] & 0x80) == 0 ? false : true;
+        QR = (flags & 0x80) == 0 ? false : true;
         // read OPCODE
-        OPCODE = (byte)(((int)headerByte[2]& 0x78) >> 3);
+        OPCODE = (byte)(((int)flags & 0x78) >> 3);
         // read AA
-        AA = (headerByte[2] & 0x04) == 0 ? false: true;
+        AA = (flags & 0x04) == 0 ? false: true;
         // read TC
-        TC = (headerByte[2] & 0x02) == 0 ? false: true;
+        TC = (flags & 0x02) == 0 ? false: true;
         // read RD
-        RD = (headerByte[2] & 0x01) == 0 ? false: true;
+        RD = (flags & 0x01) == 0 ? false: true;
         // read RA
-        RA = (headerByte[3] & 0x80) == 0 ? false: true;
+        RA = (codes & 0x80) == 0 ? false: true;
         // read RCODE
-        RCODE = (byte) ((int)headerByte[3] & 0x0F);
+        RCODE = (byte) ((int)codes & 0x0F);
         // read QDCOUNT
-        QDCOUNT = getShort(headerByte, 4); 
+        QDCOUNT = buffer.getShort(offset + 4);
         // read ANCOUNT
-        ANCOUNT = getShort(headerByte, 6); 
+        ANCOUNT = buffer.getShort(offset + 6);
         // read NSCOUNT
-        NSCOUNT = getShort(headerByte, 8);
+        NSCOUNT = buffer.getShort(offset + 8);
         // read ARCOUNT
-        ARCOUNT = getShort(headerByte, 10);
+        ARCOUNT = buffer.getShort(offset + 10);
 
     }
 
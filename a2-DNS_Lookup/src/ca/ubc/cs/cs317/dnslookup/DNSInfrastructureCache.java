@@ -0,0 +1,190 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Remembers how quickly each name server has answered, so that the resolver can ask the fastest
+ * servers of a zone first. For each server address the cache keeps a smoothed round-trip time
+ * and its variance, updated with every response as TCP does (RFC 6298), and counts the queries
+ * that timed out.
+ *
+ * Servers are ranked by their expected response time, the smoothed RTT plus four times the
+ * variance, doubled for each consecutive timeout. A server that has not been measured is
+ * assumed to answer in UNKNOWN_RTT_MILLIS, so that it gets tried. To keep the estimates of the
+ * other servers up to date, a server other than the fastest is occasionally tried first.
+ *
+ * The same estimates give the retransmission timeout of each server, SRTT + 4 * RTTVAR as in
+ * RFC 6298, doubled for each consecutive timeout. A server that has not been measured gets a
+ * short fixed timeout instead.
+ *
+ * Entries that have not been updated for ENTRY_TTL_MILLIS are forgotten, since a server that
+ * was slow or down may well have recovered. This class is thread-safe.
+ */
+public class DNSInfrastructureCache {
+
+    private static final double UNKNOWN_RTT_MILLIS = 376;
+    private static final long UNKNOWN_SERVER_RTO_MILLIS = 1000;
+    private static final long MIN_RTO_MILLIS = 100;
+    private static final long MAX_RTO_MILLIS = 5000;
+    private static final double EXPLORE_PROBABILITY = 0.05;
+    private static final int MAX_TIMEOUT_BACKOFF = 6;
+    private static final long ENTRY_TTL_MILLIS = 15 * 60 * 1000;
+    private static final int MAX_ENTRIES = 10000;
+
+    private final ConcurrentHashMap<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+    /** What is known about one server. All fields are guarded by the object itself.
+     */
+    private static class ServerStats {
+        double smoothedRTT;
+        double rttVariance;
+        boolean measured;
+        int timeouts;
+        int consecutiveTimeouts;
+        long lastUpdate;
+
+        synchronized double expectedRTT(long now) {
+            if (now - lastUpdate > ENTRY_TTL_MILLIS)
+                return UNKNOWN_RTT_MILLIS;
+            double rtt = measured ? smoothedRTT + 4 * rttVariance : UNKNOWN_RTT_MILLIS;
+            return rtt * (1 << Math.min(consecutiveTimeouts, MAX_TIMEOUT_BACKOFF));
+        }
+
+        synchronized long retransmissionTimeout(long now) {
+            if (now - lastUpdate > ENTRY_TTL_MILLIS)
+                return UNKNOWN_SERVER_RTO_MILLIS;
+            long rto = measured ? Math.max(MIN_RTO_MILLIS,
+                                           (long) Math.ceil(smoothedRTT + 4 * rttVariance))
+                                : UNKNOWN_SERVER_RTO_MILLIS;
+            return Math.min(MAX_RTO_MILLIS,
+                            rto << Math.min(consecutiveTimeouts, MAX_TIMEOUT_BACKOFF));
+        }
+    }
+
+    /** Records the round-trip time of a response.
+     *
+     * @param server    Address of the server that answered.
+     * @param rttMillis Time from sending the query to receiving the response, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, double rttMillis) {
+        ServerStats stats = getStats(server);
+        synchronized (stats) {
+            if (!stats.measured) {
+                stats.smoothedRTT = rttMillis;
+                stats.rttVariance = rttMillis / 2;
+                stats.measured = true;
+            } else {
+                stats.rttVariance = 0.75 * stats.rttVariance +
+                                    0.25 * Math.abs(stats.smoothedRTT - rttMillis);
+                stats.smoothedRTT = 0.875 * stats.smoothedRTT + 0.125 * rttMillis;
+            }
+            stats.consecutiveTimeouts = 0;
+            stats.lastUpdate = System.currentTimeMillis();
+        }
+    }
+
+    /** Records a query that got no response in time.
+     *
+     * @param server Address of the server that did not answer.
+     */
+    public void recordTimeout(InetAddress server) {
+        ServerStats stats = getStats(server);
+        synchronized (stats) {
+            stats.timeouts++;
+            stats.consecutiveTimeouts++;
+            stats.lastUpdate = System.currentTimeMillis();
+        }
+    }
+
+    /** Returns the expected response time of a server.
+     *
+     * @param server Address of the server.
+     * @return The expected response time in milliseconds.
+     */
+    public double getExpectedRTT(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null ? UNKNOWN_RTT_MILLIS : stats.expectedRTT(System.currentTimeMillis());
+    }
+
+    /** Returns how long to wait for a response from a server before sending the query again.
+     * Since every timeout of the server doubles it, each retransmission of a query waits twice
+     * as long as the previous one, up to five seconds.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout in milliseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null ? UNKNOWN_SERVER_RTO_MILLIS
+                             : stats.retransmissionTimeout(System.currentTimeMillis());
+    }
+
+    /** Orders the addresses of the name servers of a zone, fastest first. Now and then a random
+     * server other than the fastest is moved to the front, so that it is measured again.
+     *
+     * @param addresses Type A or AAAA resource records of the name servers.
+     * @return A new list with the same records, in the order they should be tried.
+     */
+    public List<ResourceRecord> rank(List<ResourceRecord> addresses) {
+        List<ResourceRecord> ranked = new ArrayList<>(addresses);
+        if (ranked.size() < 2)
+            return ranked;
+
+        long now = System.currentTimeMillis();
+        Map<InetAddress, Double> expected = new HashMap<>();
+        for (ResourceRecord record : ranked) {
+            InetAddress address = record.getInetResult();
+            ServerStats stats = servers.get(address);
+            expected.put(address, stats == null ? UNKNOWN_RTT_MILLIS : stats.expectedRTT(now));
+        }
+        ranked.sort(Comparator.comparingDouble(record -> expected.get(record.getInetResult())));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < EXPLORE_PROBABILITY)
+            ranked.add(0, ranked.remove(1 + random.nextInt(ranked.size() - 1)));
+        return ranked;
+    }
+
+    /** Calls a function for every server that has been measured or has timed out recently.
+     *
+     * @param consumer Called with the address, smoothed RTT, RTT variance and number of
+     *                 timeouts of each server. The RTTs are in milliseconds, and are negative
+     *                 for a server that has never answered.
+     */
+    public void forEachServer(ServerConsumer consumer) {
+        long now = System.currentTimeMillis();
+        servers.forEach((address, stats) -> {
+            synchronized (stats) {
+                if (now - stats.lastUpdate > ENTRY_TTL_MILLIS)
+                    return;
+                consumer.accept(address, stats.measured ? stats.smoothedRTT : -1,
+                                stats.measured ? stats.rttVariance : -1, stats.timeouts);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    public interface ServerConsumer {
+        void accept(InetAddress server, double smoothedRTT, double rttVariance, int timeouts);
+    }
+
+    private ServerStats getStats(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        if (stats != null)
+            return stats;
+        if (servers.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            servers.values().removeIf(old -> {
+                synchronized (old) {
+                    return now - old.lastUpdate > ENTRY_TTL_MILLIS;
+                }
+            });
+            // Every server was used recently; start over rather than grow without bound.
+            if (servers.size() >= MAX_ENTRIES)
+                servers.clear();
+        }
+        return servers.computeIfAbsent(server, address -> new ServerStats());
+    }
+}
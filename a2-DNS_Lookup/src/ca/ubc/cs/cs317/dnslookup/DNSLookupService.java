@@ -1,26 +1,31 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.BufferedReader;
 import java.io.Console;
-import java.net.DatagramSocket;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.net.DatagramPacket;
-import java.lang.Exception;
+import java.util.concurrent.CompletionException;
 
 public class DNSLookupService {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final long QUERY_TIMEOUT_MILLIS = 5000;
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 300;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 50;
 
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static DNSQueryEngine engine;
+    private static DNSResolver resolver;
+    private static DNSServer server;
 
     private static DNSCache cache = DNSCache.getInstance();
 
-    private static Random random = new Random();
     /**
      * Main function, called when program is first invoked.
      *
@@ -28,28 +33,89 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        // Everything after --batch describes a batch to run instead of the interactive prompt.
+        // --serve port answers DNS clients on the port instead.
+        String[] batchArgs = null;
+        String servePort = null;
+        List<String> positionalArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--batch")) {
+                batchArgs = Arrays.copyOfRange(args, i + 1, args.length);
+                break;
+            } else if (args[i].equals("--serve") && i + 1 < args.length) {
+                servePort = args[++i];
+            } else {
+                positionalArgs.add(args[i]);
+            }
+        }
+        args = positionalArgs.toArray(new String[0]);
+
+        if ((args.length != 1 && args.length != 2) ||
+            (batchArgs != null && (batchArgs.length == 0 || servePort != null))) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [snapshotFile] [--serve port | --batch file|- [type] [concurrency] [json]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("If snapshotFile is given, the cache is restored from it on startup, and saved to it periodically and on exit.");
+            System.err.println("With --batch, the names in file (or standard input for -) are resolved and printed, and the program exits.");
+            System.err.println("With --serve, DNS queries are answered on the UDP and TCP port until the program is stopped.");
             System.exit(1);
         }
 
+        InetAddress rootServer = null;
         try {
             rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            // The output of a batch is only its results.
+            if (batchArgs == null)
+                System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            engine = new DNSQueryEngine();
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        resolver = new DNSResolver(engine, cache, rootServer);
+
+        Path snapshotFile = args.length == 2 ? Paths.get(args[1]) : null;
+        if (snapshotFile != null) {
+            if (Files.exists(snapshotFile)) {
+                try {
+                    int restored = cache.loadSnapshot(snapshotFile);
+                    // Keep the output of a batch to its results.
+                    (batchArgs == null ? System.out : System.err).println(
+                            "Restoring " + restored + " cached queries from " + snapshotFile);
+                } catch (IOException e) {
+                    System.err.println("Could not load cache snapshot (" + e.getMessage() + ").");
+                }
+            }
+            cache.setSnapshotSchedule(snapshotFile, SNAPSHOT_INTERVAL_SECONDS);
+        }
+
+        if (batchArgs != null) {
+            int status = runBatch(batchArgs, true);
+            shutDown(snapshotFile);
+            System.exit(status == 0 ? 0 : 1);
+        }
+
+        if (servePort != null) {
+            if (!startServer(servePort, null))
+                System.exit(1);
+            Path savedSnapshotFile = snapshotFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> shutDown(savedSnapshotFile)));
+            // The server threads are daemons; keep running until the process is stopped.
+            while (true) {
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            System.exit(0);
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -86,6 +152,7 @@ public class DNSLookupService {
                 if (commandArgs.length == 2) {
                     try {
                         rootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServer(rootServer);
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
@@ -99,18 +166,86 @@ public class DNSLookupService {
                 // TRACE: Turn trace setting on or off
                 if (commandArgs.length == 2) {
                     if (commandArgs[1].equalsIgnoreCase("on"))
-                        verboseTracing = true;
+                        resolver.setVerboseTracing(true);
                     else if (commandArgs[1].equalsIgnoreCase("off"))
-                        verboseTracing = false;
+                        resolver.setVerboseTracing(false);
                     else {
                         System.err.println("Invalid call. Format:\n\ttrace on|off");
                         continue;
                     }
-                    System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
+                    System.out.println("Verbose tracing is now: " + (resolver.isVerboseTracing() ? "ON" : "OFF"));
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
                     continue;
                 }
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Turn refreshing of popular cache entries on or off
+                if (commandArgs.length == 2) {
+                    if (commandArgs[1].equalsIgnoreCase("on"))
+                        resolver.setPrefetchEnabled(true);
+                    else if (commandArgs[1].equalsIgnoreCase("off"))
+                        resolver.setPrefetchEnabled(false);
+                    else {
+                        System.err.println("Invalid call. Format:\n\tprefetch on|off");
+                        continue;
+                    }
+                    System.out.println("Prefetching is now: " + (resolver.isPrefetchEnabled() ? "ON" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tprefetch on|off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Turn serving of expired records on or off when lookups fail
+                if (commandArgs.length == 2) {
+                    if (commandArgs[1].equalsIgnoreCase("on"))
+                        resolver.setServeStale(true);
+                    else if (commandArgs[1].equalsIgnoreCase("off"))
+                        resolver.setServeStale(false);
+                    else {
+                        System.err.println("Invalid call. Format:\n\tstale on|off");
+                        continue;
+                    }
+                    System.out.println("Serving stale records is now: " + (resolver.isServeStale() ? "ON" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstale on|off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Change the UDP payload size advertised in queries, or turn EDNS0 off
+                if (commandArgs.length == 2) {
+                    try {
+                        if (commandArgs[1].equalsIgnoreCase("off"))
+                            resolver.setEdnsPayloadSize(0);
+                        else
+                            resolver.setEdnsPayloadSize(Integer.parseInt(commandArgs[1]));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Invalid call. Format:\n\tedns size|off");
+                        continue;
+                    }
+                    System.out.println("EDNS payload size is now: " +
+                            (resolver.getEdnsPayloadSize() == 0 ? "OFF" : resolver.getEdnsPayloadSize()));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("stagger")) {
+                // STAGGER: Ask the next name server of a zone after a delay, or only on failure
+                if (commandArgs.length == 2) {
+                    try {
+                        if (commandArgs[1].equalsIgnoreCase("off"))
+                            resolver.setStaggerDelay(0);
+                        else
+                            resolver.setStaggerDelay(Long.parseLong(commandArgs[1]));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Invalid call. Format:\n\tstagger ms|off");
+                        continue;
+                    }
+                    System.out.println("Stagger delay is now: " +
+                            (resolver.getStaggerDelay() == 0 ? "OFF" : resolver.getStaggerDelay() + " ms"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstagger ms|off");
+                    continue;
+                }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -129,466 +264,239 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("rtt")) {
+                // RTT: Print the response times measured for each name server
+                resolver.getInfrastructureCache().forEachServer((server, srtt, rttvar, timeouts) ->
+                        System.out.printf("%-30s SRTT %8.1f ms  RTTVAR %8.1f ms  timeouts %d\n",
+                                server.getHostAddress(), srtt, rttvar, timeouts));
+            } else if (commandArgs[0].equalsIgnoreCase("dual")) {
+                // DUAL: Find and print the IPv6 and IPv4 addresses of a name together
+                if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\tdual hostName");
+                    continue;
+                }
+                findAndPrintAddresses(commandArgs[1]);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve every name in a file, several at a time
+                if (commandArgs.length < 2 || commandArgs.length > 5 ||
+                    runBatch(Arrays.copyOfRange(commandArgs, 1, commandArgs.length), false) < 0) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [type] [concurrency] [json]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer DNS queries from other processes on a port, or stop answering
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (server != null) {
+                        server.close();
+                        server = null;
+                    }
+                    System.out.println("Server is now: OFF");
+                } else if (commandArgs.length < 2 || commandArgs.length > 3 || server != null ||
+                           !startServer(commandArgs[1],
+                                        commandArgs.length == 3 ? commandArgs[2] : null)) {
+                    System.err.println("Invalid call. Format:\n\tserve port [loops]|off");
+                    continue;
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("capacity")) {
+                // CAPACITY: Show or change the maximum size of the cache
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        long entries = Long.parseLong(commandArgs[1]);
+                        long bytes = commandArgs.length == 3 ? Long.parseLong(commandArgs[2])
+                                                             : cache.getMaximumBytes();
+                        cache.setCapacity(entries, bytes);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid call. Format:\n\tcapacity [entries [bytes]]");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tcapacity [entries [bytes]]");
+                    continue;
+                }
+                System.out.printf("Cache holds %d of %d entries, %d of %d bytes\n",
+                        cache.size(), cache.getMaximumEntries(),
+                        cache.estimatedBytes(), cache.getMaximumBytes());
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tdual fqdn");
+                System.err.println("\tbatch file [type] [concurrency] [json]");
+                System.err.println("\tserve port [loops]|off");
                 System.err.println("\ttrace on|off");
+                System.err.println("\tprefetch on|off");
+                System.err.println("\tstale on|off");
+                System.err.println("\tedns size|off");
+                System.err.println("\tstagger ms|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\trtt");
+                System.err.println("\tcapacity [entries [bytes]]");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        shutDown(snapshotFile);
         System.out.println("Goodbye!");
     }
 
     /**
-     * Finds all results for a host name and type and prints them on the standard output.
+     * Stops background work, saves the cache if a snapshot file was given, and closes the
+     * query engine.
      *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
+     * @param snapshotFile File the cache is saved to, or null.
      */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-
-        DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+    private static void shutDown(Path snapshotFile) {
+        if (server != null)
+            server.close();
+        resolver.setPrefetchEnabled(false);
+        if (snapshotFile != null) {
+            cache.setSnapshotSchedule(null, 0);
+            try {
+                cache.saveSnapshot(snapshotFile);
+            } catch (IOException e) {
+                System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+            }
+        }
+        engine.close();
     }
 
-
     /**
-     * Find a nearest name server in cache for a DNS query.
-     * 
-     * @param node   The DNS query node need to be addressed.
-     * @param robust Return the root server if any exception occur if robuts
-     *               is true, otherwise return null. If the address is for 
-     *               the first question packet of a query, robust should be
-     *               true meaning we send it to a root server by dafualt.
-     *               But if it's not the first packet then we shouldn't return
-     *               root server, otherwise we may have an dead loop.
+     * Starts answering DNS queries from other processes on a port.
      *
-     * @return An ArrayList of type A resource record of nearest name server.
-     */
-    private static ArrayList<ResourceRecord> getNextNameServer(DNSNode node, 
-                                                         boolean robust) {
-        String domainName = node.getHostName();
-        ArrayList<ResourceRecord> results = new ArrayList();
-
-        while (true) {
-            Set<ResourceRecord> records = cache.getCachedResults(
-                                      new DNSNode(domainName, RecordType.NS));
-            // If we don't have Name Server corresponding to this level
-            // we then check for domainName of next level
-            if (records.isEmpty() == true) {
-                // if it's already the top level, return a set containing only
-                // root server
-                if (domainName.indexOf('.') == -1) {
-                    results.add(new ResourceRecord("rootServer",
-                                                   RecordType.A,
-                                                   0,
-                                                   rootServer));
-                    return results;
-                }
-                else {
-                    String [] namePieces = domainName.split("\\.",2);
-                    domainName = namePieces[1];
-                }
-            }
-            else { // we have name server of this level, now we need to get
-                   // it's IP address
-                // First check if we have a IP address in cache
-                for(ResourceRecord recordNS: records) {
- 
-                    Set<ResourceRecord> addressNSSet = cache.getCachedResults(
-                           new DNSNode(recordNS.getTextResult(), RecordType.A));
-
-                    for (ResourceRecord addrRecord: addressNSSet) {
-                        results.add(addrRecord);
-                    }
-                }
-
-                // If we do, just return them.
-                if (results.isEmpty() == false) {
-                    return results;
-                }
-
-                // Otherwise we don't have the ip address for the server, we 
-                // need to look it up ourselves.
-                for(ResourceRecord recordNS: records) {
- 
-                    Set<ResourceRecord> addressNSSet = getResults(
-                      new DNSNode(recordNS.getTextResult(), RecordType.A), 0);
-
-                    for (ResourceRecord addrRecord: addressNSSet) {
-                        results.add(addrRecord);
-                    }
-                }
-
-                // If now we have results, return them
-                if (results.isEmpty() == false) {
-                    return results;
-                }
-                // If we still don't get the addresses, it must be an exception
-                // But if robust == true, we keep looking upper level to find
-                // a name server.
-                else if (robust == false) {
-                    return results; // results is empty here
-                }
-            } 
-        } 
-    }     
-
-
-    /**
-     * Finds all the result for a specific node.
+     * @param port  The UDP and TCP port to listen on.
+     * @param loops The number of UDP event loops, or null for one per core.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @return false if the arguments are invalid or the port could not be bound, true
+     *         otherwise.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-
-
-        // TODO To be completed by the student
-        // First check cache for answer.
-        Set<ResourceRecord> answer = null;
-        answer = cache.getCachedResults(node);
-        if (answer.isEmpty() == false) return answer;
-
-
-        // We should also check for CNAME record in cache, if it has a
-        // CNAME, check the CNAME's answer
-        answer = cache.getCachedResults(new DNSNode(node.getHostName(), 
-                                        RecordType.CNAME));
-        if (answer.isEmpty() == false) {
-            ResourceRecord result = (ResourceRecord)answer.toArray()[0];
-            return getResults(
-                      new DNSNode(result.getTextResult(), node.getType()),
-                      indirectionLevel + 1);
-               
+    private static boolean startServer(String port, String loops) {
+        int portNumber;
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        try {
+            portNumber = Integer.parseInt(port);
+            if (loops != null)
+                loopCount = Integer.parseInt(loops);
+        } catch (NumberFormatException ex) {
+            return false;
         }
+        if (portNumber < 1 || portNumber > 65535 || loopCount < 1)
+            return false;
 
-        // Now we should determine which name server to send to.
-        // We should check the domain name level by level to determined
-        // the closest nameserver to send query.
-        ArrayList<ResourceRecord> setNSAddr = getNextNameServer(node, true);
-        if (setNSAddr.isEmpty() == true) {
-            // This actually would not happen, but just for safe.
-            retrieveResultsFromServer(node, rootServer);
-        }
-        else {
-            int retCode = -1;
-            // Go over all name server until one success.
-            for (ResourceRecord nameServerAddr: setNSAddr) {
-                retCode = retrieveResultsFromServer(node, 
-                                          nameServerAddr.getInetResult());
-                if (retCode != -1) break;
-            }
-          
+        try {
+            server = new DNSServer(resolver, portNumber, loopCount);
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + portNumber + " (" + e.getMessage() + ").");
+            return false;
         }
-
- 
- 
-        // Check if we have answer
-        answer = cache.getCachedResults(node);
-        if (answer.isEmpty() == true) {
-          // If don't check for CNAME
-          answer = cache.getCachedResults(new DNSNode(node.getHostName(), 
-                                          RecordType.CNAME));
-          if (answer.isEmpty() == false) {
-            ResourceRecord result = (ResourceRecord)answer.toArray()[0];
-//            if (result.getTTL() == -1) return Collections.emptySet();
-  //          else {
-            return getResults(
-                      new DNSNode(result.getTextResult(), node.getType()), 
-                      indirectionLevel + 1);
-  //          }
-          }
-          else { // If we don't have a CNAME neither, it's an exception.
-              return Collections.emptySet();
-          }
-        } //else {
-//            ResourceRecord result = (ResourceRecord)answer.toArray()[0];
-//            if (result.getTTL() == -1) return Collections.emptySet();
-            //  return answer;
-       //   }
-
-        return answer;
-    }
-
-
-    /**
-     * Generate a transactionID.
-     *
-     * @return A transactionID.
-     */
-    private static short getTransactionID() {
-        return (short) (random.nextInt() & 0xFFFF);
+        System.out.println("Answering DNS queries on port " + server.getPort() + " with " +
+                loopCount + " UDP event loops on " + server.getUdpSocketCount() + " sockets");
+        return true;
     }
 
     /**
-     * Form a query packet given a particular query.
+     * Resolves a batch of names and prints the results as they complete. The arguments are
+     * the file the names are read from, optionally followed in any order by a record type
+     * (A by default), the number of lookups to run at a time (DEFAULT_BATCH_CONCURRENCY by
+     * default), and the word json to print newline-delimited JSON instead of columns.
      *
-     * @param node          The DNSNode of given query.
-     * @param transactionID The ID of this transaction.
+     * @param batchArgs   The file and options.
+     * @param allowStdin  true if a file of - means standard input.
      *
-     * @return The corresponding datagram packet.
+     * @return 0 if the names were resolved, 1 if they could not be read, or -1 if the
+     *         arguments are invalid.
      */
-    private static DatagramPacket formQuestionPacket(DNSNode node,
-                                                     int transactionID,
-                                                     InetAddress server) {
-
-        byte [] query = new byte[512];
-
-        // ID
-        query[0] = (byte)(transactionID >> 8);
-        query[1] = (byte)(transactionID);
-
-        // Query
-        query[2] = 0;
-        query[3] = 0;
-
-        // Question
-        query[4] = 0;
-        query[5] = 1;
-
-        // Answer
-        for (int i = 6; i < 13; i++) {
-          query[i] = 0;
-        }
-
-        int index = 12; // Setting index for Dynamic Purposes
-
-        // Domain Name
-        String[] hostName = node.getHostName().split("\\.");
-        for (int i = 0; i < hostName.length; i++) {
-          query[index++] = (byte)hostName[i].length();
-          byte[] bytes = hostName[i].getBytes();
-          for (int j = 0; j < bytes.length; j++) {
-            query[index++] = bytes[j];
-          }
-        }
-        query[index++] = 0;
-
-        // Type
-        query[index++] = 0;
-        query[index++] = (byte)node.getType().getCode();
-
-        // IN
-        query[index++] = 0;
-        query[index++] = 1;
-        byte[] newQuery = new byte[index];
-        for (int i = 0; i < index; i++) {
-          newQuery[i] = query[i];
+    private static int runBatch(String[] batchArgs, boolean allowStdin) {
+        RecordType type = RecordType.A;
+        int concurrency = DEFAULT_BATCH_CONCURRENCY;
+        boolean json = false;
+        for (int i = 1; i < batchArgs.length; i++) {
+            String option = batchArgs[i];
+            if (option.equalsIgnoreCase("json")) {
+                json = true;
+            } else if (option.matches("\\d+")) {
+                try {
+                    concurrency = Integer.parseInt(option);
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+                if (concurrency < 1)
+                    return -1;
+            } else {
+                try {
+                    type = RecordType.valueOf(option.toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    return -1;
+                }
+            }
         }
-        DatagramPacket queryPacket = new DatagramPacket(newQuery,index,
-                                                 server, DEFAULT_DNS_PORT);
-
-
-        return queryPacket;
-    }
-
-    /**
-     * Receive a resposne.
-     * @return The received datagram packet.
-     */
-    private static DatagramPacket receiveResponse() {
-
-        byte [] responseBuf = new byte[1024];
-        DatagramPacket responsePacket = new DatagramPacket(responseBuf,1024);
 
-        try {
-            socket.receive(responsePacket);
-        }
-        catch (Exception e){
-            return null;
-        }
-        return responsePacket;
-    }
+        boolean stdin = batchArgs[0].equals("-");
+        if (stdin && !allowStdin)
+            return -1;
 
- 
-    /**
-     * Output the trace of a query.
-     *
-     * @param node          DNSNode of query
-     * @param server        The InerAddress of the server.
-     * @param transactionID The transaction ID
-     */
-    private static void traceQuery(DNSNode node, InetAddress server, 
-                                   short transactionID) {
-        if (verboseTracing == true) {
-            System.out.printf("\n\nQuery ID     %d %s  %s --> %s\n",
-                              transactionID&0xff, node.getHostName(), 
-                              node.getType(),
-                              server.toString().substring(1));
+        DNSBatchResolver batch = new DNSBatchResolver(resolver, type, concurrency, json,
+                                                      System.out);
+        long start = System.nanoTime();
+        try (BufferedReader names = stdin
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Paths.get(batchArgs[0]))) {
+            long count = batch.run(names);
+            System.err.printf("Resolved %d names in %.1f s\n", count,
+                              (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.err.println("Could not read names (" + e.getMessage() + ").");
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
         }
+        return 0;
     }
-   
 
     /**
-     * Send the question packet to the server and received response.
-     *
-     * @param node          DNSNode of query
-     * @param server        The InerAddress of the server.
-     * @param transactionID The transaction ID
+     * Finds all results for a host name and type and prints them on the standard output.
      *
-     * @return The received response packet
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
      */
-    private static DatagramPacket sendQuestionGetResponse(
-                                              DNSNode node,
-                                              InetAddress server,
-                                              short transactionID) {
-
-        DatagramPacket questionPacket= formQuestionPacket(node, transactionID,
-                                                          server);
+    private static void findAndPrintResults(String hostName, RecordType type) {
 
+        DNSNode node = new DNSNode(hostName, type);
+        Set<ResourceRecord> results;
         try {
-            traceQuery(node, server, transactionID);
-            socket.send(questionPacket);
-            DatagramPacket responsePacket = receiveResponse();
-            // If resposne is null, try again
-            if (responsePacket == null) {
-                socket.send(questionPacket);
-                traceQuery(node, server, transactionID);
-                responsePacket = receiveResponse();
-            }
-            return responsePacket;
-        }
-        catch (Exception e){
-            return null;
+            results = resolver.resolve(node).join();
+        } catch (CompletionException e) {
+            System.err.println("Lookup failed (" + e.getCause() + ").");
+            results = Collections.emptySet();
         }
+        printResults(node, results);
     }
 
-
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Finds the IPv6 and IPv4 addresses of a host name, looked up together, and prints them
+     * on the standard output.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
-     *
-     * @return 0 if no exception happens, 
-     *         -1 if couldn't reveive response, so the caller may change to
-     *         another server.
-     *         -2 otherwise.
+     * @param hostName Fully qualified domain name of the host being searched.
      */
-    private static int retrieveResultsFromServer(DNSNode node, InetAddress server) {
-
-        // TODO To be completed by the student
-        // Form a query datagram packet.
-        short transactionID = getTransactionID();
-//        DatagramPacket questionPacket= formQuestionPacket(node, transactionID,
-//                                                          server);
-        
-
-        // Send the question packet and get response.
-        DatagramPacket responsePacket = sendQuestionGetResponse(node, server,
-                                                              transactionID);
-        if (responsePacket == null) {
-            return -1;
-        }
-
-
-        // Now check the header of resposne.
-        DNSHeader header = null;
-        // Keep receiving until we get packet with right transaction ID.
-        while (true) {
-            header = DNSPacketParser.parseHeader(responsePacket);
-            if (header == null) return -2;
-            if (header.getTransactionID() != transactionID) {
-            // In this case we should ignore the packet and
-            // try to get a correct one.
-                responsePacket = receiveResponse();
-                if (responsePacket == null) return -2;
-            }
-            else {
-                break;
-            }
-        }
-
-
-        // Check header for exception
-        if (header.getRCODE() != 0) return -2;
-        if (header.getTC() == true) return -2;
-        if (header.getAA() == true && header.getANCOUNT() == 0) return -2;
-        if (header.getQR() == false ||
-            header.getOPCODE() != DNSHeader.OPCODE_QUERY ||
-            header.getQDCOUNT () != 1)
-            return -2;
-
-        if (verboseTracing == true) {
-            System.out.printf("Response ID: %d Authoratative = %s\n", 
-                              transactionID & 0xFF, 
-                              String.valueOf(header.getAA()));
-        }
+    private static void findAndPrintAddresses(String hostName) {
 
-        // Now parse the resource record in response
-        int err = DNSPacketParser.parseResponse(node, responsePacket,
-                                                verboseTracing);
-        if (err != 0) return -2;
-
-
-        // Now based on our cached record, determine what we do next.
-        // I think when server is authoratative, we should return
-        // and let getResults() decide what to do next, for example return 
-        // answers or start a new recursion for a CNAME.
-        if (header.getAA() == true) {
-            // If AA is true, ANCOUNT is not 0 and nothing wrong when decoding
-            // we get the answer
-            return -2;
-        }
-        else {
-            // If server it's not authoratative, we should get a nameserver
-            // or exception
-            // get the name server and call retrieveResultsFromServer for
-            // this new server. Also, ip address of name server may be not
-            // in cache.
-            if (header.getNSCOUNT() == 0) {
-                return -2;
-            }
-            // we should have a name server for next level.
-            ArrayList<ResourceRecord> setNSAddr = getNextNameServer(node, false);
-            if (setNSAddr.isEmpty() == true) {
-                return -2;
-            }
- 
-            int retCode = -2;
-            // Go over all name server until one success.
-            for (ResourceRecord nameServerAddr: setNSAddr) {
-                retCode = retrieveResultsFromServer(node, 
-                                          nameServerAddr.getInetResult());
-                if (retCode != -1) break;
-            }
-
-            // If we couldn't connect to any name server, it's more likely
-            // because our internet is down.
-            if (retCode == -1) return -2;
-
-            return retCode;
+        Set<ResourceRecord> results;
+        try {
+            results = resolver.resolveAddresses(hostName).join();
+        } catch (CompletionException e) {
+            System.err.println("Lookup failed (" + e.getCause() + ").");
+            results = Collections.emptySet();
         }
-    }
-
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+        // The results mix A and AAAA records, so each is printed with its own type.
+        if (results.isEmpty())
+            printResults(new DNSNode(hostName, RecordType.A), results);
+        for (ResourceRecord record : results)
+            printResults(new DNSNode(hostName, record.getType()), Collections.singleton(record));
     }
 
     /**
@@ -607,16 +515,6 @@ public class DNSLookupService {
         }
     }
 
-    /**
-     * Add a resource record into cache. This method is built so that my
-     * DNSPacketParser could add resource record into cache.
-     *
-     * @param record The resource record to be added into cache.
-     */
-    public static void addToCache (ResourceRecord record) {
-        cache.addResult(record);
-    }
-
     /**
      * A small method help me debug decoding response
      */
@@ -657,29 +555,26 @@ public class DNSLookupService {
         byte [] query = query1;
         String domainName = domainName1;
 
-        byte [] responseBuf = new byte [1024];
-
-        DatagramPacket queryPacket = new DatagramPacket(query,query.length,
-                                                 rootServer, DEFAULT_DNS_PORT);
-        DatagramPacket responsePacket = new DatagramPacket(responseBuf,1024);
+        DNSNode queryNode = new DNSNode(domainName,
+                                        RecordType.getByCode(1));
+        DNSResponse response;
         try {
-            socket.send(queryPacket);
-
-            socket.receive(responsePacket);
+            response = engine.send(queryNode, resolver.getRootServer(),
+                                   DEFAULT_DNS_PORT, ByteBuffer.wrap(query),
+                                   QUERY_TIMEOUT_MILLIS).get();
         }
         catch (Exception e){
             System.out.println(e.getMessage());
+            return;
         }
-        byte [] buf = responsePacket.getData();
-        for(int i = 0; i < responsePacket.getLength(); i++){
-            System.out.printf("%02X ", buf[i]);
+        ByteBuffer buf = response.getBuffer();
+        for(int i = 0; i < buf.limit(); i++){
+            System.out.printf("%02X ", buf.get(i));
             if (i % 32 == 31) System.out.printf("\n");
         }
         System.out.printf("\n");
 
-        DNSNode queryNode = new DNSNode(domainName,
-                                        RecordType.getByCode(1));
-        DNSPacketParser.parseResponse(queryNode, responsePacket,
-                                       true);
+        DNSPacketParser.parseResponse(queryNode, buf, cache, true);
+        response.release();
     }
 }
@@ -0,0 +1,492 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Reads a DNS message in place. The reader walks the bytes of the message with an integer
+ * cursor and only looks at what it is asked for: reading a message only reads the section
+ * counts, moving to the next record only finds where its fields are, and names and resource
+ * records are decoded when a caller asks for them. Names are decoded into a buffer that is
+ * reused for every name, so comparing the question with a query allocates nothing.
+ *
+ * Compression pointers must point before the start of the part of the name that contains them,
+ * so following them always ends. Malformed messages are reported with a DNSParseException.
+ *
+ * A reader is not thread-safe, but it can be reused for any number of messages, one at a time.
+ * The buffer given to read must not change while the message is being read.
+ */
+public class DNSMessageReader {
+
+    public static final int SECTION_ANSWER = 0;
+    public static final int SECTION_AUTHORITY = 1;
+    public static final int SECTION_ADDITIONAL = 2;
+
+    public static final int CLASS_IN = 1;
+    public static final int TYPE_OPT = 41;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final char[] name = new char[MAX_NAME_LENGTH];
+    private int nameLength;
+
+    private ByteBuffer message;
+    private DNSHeader header;
+    private int questionCount;
+    private int firstRecord;
+    private int[] sectionEnds = new int[3];
+    private int recordCount;
+
+    // Cursor, and the fields of the current record.
+    private int position;
+    private int recordIndex;
+    private int recordNameOffset;
+    private int recordType;
+    private int recordClass;
+    private long recordTTL;
+    private int dataOffset;
+    private int dataLength;
+
+    /** Creates a reader that is not reading any message yet.
+     */
+    public DNSMessageReader() {
+    }
+
+    /** Creates a reader and starts reading a message.
+     *
+     * @param buffer The message, from the position to the limit of the buffer.
+     * @throws DNSParseException If the header or question section is malformed.
+     */
+    public DNSMessageReader(ByteBuffer buffer) throws DNSParseException {
+        read(buffer);
+    }
+
+    /** Starts reading a message. The section counts are read and the question section
+     * skipped; the position of the buffer is not changed. A buffer whose position is zero is
+     * read directly, so reading it allocates nothing.
+     *
+     * @param buffer The message, from the position to the limit of the buffer.
+     * @return This reader.
+     * @throws DNSParseException If the header or question section is malformed.
+     */
+    public DNSMessageReader read(ByteBuffer buffer) throws DNSParseException {
+        message = buffer.position() == 0 ? buffer : buffer.slice();
+        if (message.limit() < HEADER_LENGTH)
+            throw new DNSParseException("Message shorter than a header");
+        header = null;
+
+        questionCount = message.getShort(4) & 0xFFFF;
+        int offset = HEADER_LENGTH;
+        for (int i = questionCount; i > 0; i--)
+            offset = need(skipName(offset), 4) + 4;
+        firstRecord = offset;
+
+        sectionEnds[SECTION_ANSWER] = message.getShort(6) & 0xFFFF;
+        sectionEnds[SECTION_AUTHORITY] =
+                sectionEnds[SECTION_ANSWER] + (message.getShort(8) & 0xFFFF);
+        sectionEnds[SECTION_ADDITIONAL] =
+                sectionEnds[SECTION_AUTHORITY] + (message.getShort(10) & 0xFFFF);
+        recordCount = sectionEnds[SECTION_ADDITIONAL];
+        rewind();
+        return this;
+    }
+
+    /** Returns the header of the message, parsed the first time it is asked for.
+     *
+     * @return The header.
+     */
+    public DNSHeader getHeader() {
+        if (header == null)
+            header = new DNSHeader(message, 0);
+        return header;
+    }
+
+    /** Moves the cursor back to the first record, so the records can be read again.
+     */
+    public void rewind() {
+        position = firstRecord;
+        recordIndex = 0;
+    }
+
+    /** Returns true if the message has exactly one question, and it is for a given node in
+     * class IN. Host names are compared without regard to case.
+     *
+     * @param node The node that was queried.
+     * @return true if the question matches the node, false otherwise.
+     * @throws DNSParseException If the question name is malformed.
+     */
+    public boolean questionMatches(DNSNode node) throws DNSParseException {
+        if (questionCount != 1)
+            return false;
+        int offset = decodeName(HEADER_LENGTH);
+        if (message.getShort(offset) != (short) node.getType().getCode() ||
+            message.getShort(offset + 2) != CLASS_IN)
+            return false;
+
+        String hostName = node.getHostName();
+        if (hostName.length() != nameLength)
+            return false;
+        for (int i = 0; i < nameLength; i++)
+            if (Character.toLowerCase(name[i]) != Character.toLowerCase(hostName.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /** Returns the offset of the end of the question section, where the first record begins.
+     *
+     * @return The offset, from the start of the message.
+     */
+    public int getQuestionEnd() {
+        return firstRecord;
+    }
+
+    /** Returns the first question of the message.
+     *
+     * @return The node of the question, or null if the message has no question.
+     * @throws DNSParseException If the question name is malformed.
+     */
+    public DNSNode getQuestion() throws DNSParseException {
+        if (questionCount == 0)
+            return null;
+        int offset = decodeName(HEADER_LENGTH);
+        return new DNSNode(nameString(), RecordType.getByCode(message.getShort(offset) & 0xFFFF));
+    }
+
+    /** Moves the cursor to the next resource record. Only the position of the fields of the
+     * record is found; nothing is decoded until asked for.
+     *
+     * @return true if the cursor is on a record, false if there are no more records.
+     * @throws DNSParseException If the record runs past the end of the message.
+     */
+    public boolean nextRecord() throws DNSParseException {
+        if (recordIndex >= recordCount)
+            return false;
+        recordNameOffset = position;
+        int offset = need(skipName(position), 10);
+        recordType = message.getShort(offset) & 0xFFFF;
+        recordClass = message.getShort(offset + 2) & 0xFFFF;
+        recordTTL = message.getInt(offset + 4) & 0xFFFFFFFFL;
+        dataLength = message.getShort(offset + 8) & 0xFFFF;
+        dataOffset = offset + 10;
+        position = need(dataOffset, dataLength) + dataLength;
+        recordIndex++;
+        return true;
+    }
+
+    /** Returns the section of the current record.
+     *
+     * @return SECTION_ANSWER, SECTION_AUTHORITY or SECTION_ADDITIONAL.
+     */
+    public int getSection() {
+        if (recordIndex <= sectionEnds[SECTION_ANSWER])
+            return SECTION_ANSWER;
+        if (recordIndex <= sectionEnds[SECTION_AUTHORITY])
+            return SECTION_AUTHORITY;
+        return SECTION_ADDITIONAL;
+    }
+
+    public int getRecordType() {
+        return recordType;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public long getRecordTTL() {
+        return recordTTL;
+    }
+
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /** Returns true if the current record is an Internet record that can be cached. Records of
+     * other classes, and EDNS OPT pseudo-records, which use the class for other purposes, are
+     * not.
+     *
+     * @return true if the record is of class IN and is not an OPT record.
+     */
+    public boolean isInternetRecord() {
+        return recordClass == CLASS_IN && recordType != TYPE_OPT;
+    }
+
+    /** Returns true if the owner name of the current record is the root name.
+     *
+     * @return true if the record is owned by the root.
+     * @throws DNSParseException If the name is malformed.
+     */
+    public boolean isOwnedByRoot() throws DNSParseException {
+        decodeName(recordNameOffset);
+        return nameLength == 0;
+    }
+
+    /** Returns the MINIMUM field of the current record, if it is a SOA record, read from the
+     * record data without decoding the record.
+     *
+     * @return The MINIMUM field, or -1 if the record is not a SOA record.
+     * @throws DNSParseException If the record data is malformed.
+     */
+    public long getSOAMinimum() throws DNSParseException {
+        if (recordType != RecordType.SOA.getCode())
+            return -1;
+        int offset = need(skipName(skipName(dataOffset)), 20);
+        if (offset + 20 > dataOffset + dataLength)
+            throw new DNSParseException("SOA record too short");
+        return message.getInt(offset + 16) & 0xFFFFFFFFL;
+    }
+
+    /** Decodes the owner name of the current record.
+     *
+     * @return The owner name, without a trailing dot.
+     * @throws DNSParseException If the name is malformed.
+     */
+    public String getRecordName() throws DNSParseException {
+        decodeName(recordNameOffset);
+        return nameString();
+    }
+
+    /** Decodes the current record. The TTL is kept as received, except that a TTL of zero is
+     * changed to a small value, so that the record can be cached long enough to be used by the
+     * lookup that received it. Records of the root name cannot be decoded, since the cache
+     * has no node for it; see isOwnedByRoot.
+     *
+     * @param zeroTTL The TTL to use instead of zero.
+     * @return The decoded record.
+     * @throws DNSParseException If the record data is malformed, or the record is owned by
+     *                           the root.
+     */
+    public ResourceRecord toResourceRecord(long zeroTTL) throws DNSParseException {
+        String hostName = getRecordName();
+        if (hostName.isEmpty())
+            throw new DNSParseException("Record for the root name");
+        long ttl = recordTTL == 0 ? zeroTTL : recordTTL;
+        RecordType type = RecordType.getByCode(recordType);
+
+        switch (type) {
+            case A:
+            case AAAA:
+                int addressLength = type == RecordType.A ? 4 : 16;
+                if (dataLength != addressLength)
+                    throw new DNSParseException("Invalid address length " + dataLength);
+                byte[] address = new byte[addressLength];
+                message.get(dataOffset, address);
+                try {
+                    return new ResourceRecord(hostName, type, ttl,
+                                              InetAddress.getByAddress(address));
+                } catch (UnknownHostException e) {
+                    throw new DNSParseException("Invalid address");
+                }
+
+            case CNAME:
+            case NS:
+                return new ResourceRecord(hostName, type, ttl, dataName(dataOffset));
+
+            case MX:
+                int preference = message.getShort(need(dataOffset, 2)) & 0xFFFF;
+                return new ResourceRecord(hostName, type, ttl,
+                                          "Preference: " + preference +
+                                          "; Mail Exchanger: " + dataName(dataOffset + 2));
+
+            case SOA:
+                String mName = dataName(dataOffset);
+                int offset = skipName(dataOffset);
+                String rName = dataName(offset);
+                offset = need(skipName(offset), 20);
+                if (offset + 20 > dataOffset + dataLength)
+                    throw new DNSParseException("SOA record too short");
+                return new ResourceRecord(hostName, type, ttl,
+                                          "MNAME: " + mName +
+                                          "; RNAME: " + rName +
+                                          "; SERIAL: " + message.getInt(offset) +
+                                          "; REFRESH: " + message.getInt(offset + 4) +
+                                          "; RETRY: " + message.getInt(offset + 8) +
+                                          "; EXPIRE: " + message.getInt(offset + 12) +
+                                          "; MINIMUM: " + message.getInt(offset + 16));
+
+            default:
+                return new ResourceRecord(hostName, type, ttl, describeOtherData());
+        }
+    }
+
+    /** Describes the data of a record whose type is not in RecordType. A record that cannot be
+     * described does not make the whole message invalid.
+     *
+     * @return A description of the record data.
+     */
+    private String describeOtherData() {
+        int end = dataOffset + dataLength;
+        StringBuilder result = new StringBuilder();
+        try {
+            switch (recordType) {
+                case 7:  // MB
+                case 8:  // MG
+                case 9:  // MR
+                case 12: // PTR
+                    return dataName(dataOffset);
+
+                case 10: // NULL
+                    result.append("It's a NULL record: ");
+                    for (int i = dataOffset; i < end; i++)
+                        result.append((char) (message.get(i) & 0xFF));
+                    return result.toString();
+
+                case 11: // WKS
+                    if (dataLength < 5)
+                        return "Couldn't parse it";
+                    result.append("ADDR: ").append(message.getInt(dataOffset))
+                          .append("; PROTOCAL: ").append(message.get(dataOffset + 4) & 0xFF)
+                          .append("; BITMAP: ");
+                    for (int i = dataOffset + 5; i < end; i++)
+                        result.append(message.get(i) & 0xFF);
+                    return result.toString();
+
+                case 13: // HINFO
+                    int os = appendCharacterString(result.append("CPU: "), dataOffset, end);
+                    appendCharacterString(result.append("; OS: "), os, end);
+                    return result.toString();
+
+                case 14: // MINFO
+                    return "RMAILBX: " + dataName(dataOffset) +
+                           "; EMAILBX: " + dataName(skipName(dataOffset));
+
+                case 16: // TXT
+                    for (int offset = dataOffset; offset < end; ) {
+                        offset = appendCharacterString(result, offset, end);
+                        result.append("; ");
+                    }
+                    return result.toString();
+
+                default:
+                    return "Couldn't parse it: illegal type";
+            }
+        } catch (DNSParseException e) {
+            return "Couldn't parse it";
+        }
+    }
+
+    /** Appends a character string (a length byte followed by that many characters).
+     *
+     * @param result Where the characters are appended.
+     * @param offset Where the character string begins.
+     * @param end    The end of the record data.
+     * @return The offset after the character string.
+     * @throws DNSParseException If the string runs past the end of the record data.
+     */
+    private int appendCharacterString(StringBuilder result, int offset, int end)
+            throws DNSParseException {
+        if (offset >= end)
+            throw new DNSParseException("Character string past the end of the record");
+        int length = message.get(offset) & 0xFF;
+        if (offset + 1 + length > end)
+            throw new DNSParseException("Character string past the end of the record");
+        for (int i = offset + 1; i <= offset + length; i++)
+            result.append((char) (message.get(i) & 0xFF));
+        return offset + 1 + length;
+    }
+
+    /** Decodes a name inside the data of the current record. The name itself must start
+     * inside the data, but may point anywhere before it.
+     *
+     * @param offset Where the name begins.
+     * @return The decoded name.
+     * @throws DNSParseException If the name is malformed, or starts after the record data.
+     */
+    private String dataName(int offset) throws DNSParseException {
+        if (offset >= dataOffset + dataLength)
+            throw new DNSParseException("Name past the end of the record");
+        decodeName(offset);
+        if (nameLength == 0)
+            throw new DNSParseException("Empty name in record data");
+        return nameString();
+    }
+
+    private String nameString() {
+        return new String(name, 0, nameLength);
+    }
+
+    /** Decodes a name into the name buffer, following compression pointers. Each pointer must
+     * point before the start of the part of the name it is in, so pointers can never loop.
+     *
+     * @param offset Where the name begins.
+     * @return The offset after the name, not counting the parts reached through pointers.
+     * @throws DNSParseException If the name is malformed or longer than 255 characters.
+     */
+    private int decodeName(int offset) throws DNSParseException {
+        int length = 0;
+        int next = -1;
+        int partStart = offset;
+        int limit = message.limit();
+
+        while (true) {
+            if (offset >= limit)
+                throw new DNSParseException("Name past the end of the message");
+            int label = message.get(offset) & 0xFF;
+
+            if (label == 0) {
+                nameLength = length;
+                return next < 0 ? offset + 1 : next;
+            } else if ((label & 0xC0) == 0xC0) {
+                if (offset + 1 >= limit)
+                    throw new DNSParseException("Name past the end of the message");
+                int target = ((label & 0x3F) << 8) | (message.get(offset + 1) & 0xFF);
+                if (target >= partStart)
+                    throw new DNSParseException("Compression pointer does not point backwards");
+                if (next < 0)
+                    next = offset + 2;
+                offset = partStart = target;
+            } else if ((label & 0xC0) == 0) {
+                if (offset + 1 + label > limit)
+                    throw new DNSParseException("Label past the end of the message");
+                if (length + label + 1 > MAX_NAME_LENGTH)
+                    throw new DNSParseException("Name longer than 255 characters");
+                if (length > 0)
+                    name[length++] = '.';
+                for (int i = offset + 1; i <= offset + label; i++)
+                    name[length++] = (char) (message.get(i) & 0xFF);
+                offset += 1 + label;
+            } else {
+                throw new DNSParseException("Unsupported label type");
+            }
+        }
+    }
+
+    /** Skips over a name without decoding it.
+     *
+     * @param offset Where the name begins.
+     * @return The offset after the name.
+     * @throws DNSParseException If the name runs past the end of the message.
+     */
+    private int skipName(int offset) throws DNSParseException {
+        int limit = message.limit();
+        while (offset < limit) {
+            int label = message.get(offset) & 0xFF;
+            if (label == 0)
+                return offset + 1;
+            if ((label & 0xC0) == 0xC0)
+                return need(offset, 2) + 2;
+            if ((label & 0xC0) != 0)
+                throw new DNSParseException("Unsupported label type");
+            offset += 1 + label;
+        }
+        throw new DNSParseException("Name past the end of the message");
+    }
+
+    /** Checks that a number of bytes are available at an offset.
+     *
+     * @param offset Where the bytes begin.
+     * @param count  How many bytes are needed.
+     * @return The offset.
+     * @throws DNSParseException If the bytes run past the end of the message.
+     */
+    private int need(int offset, int count) throws DNSParseException {
+        if (offset + count > message.limit())
+            throw new DNSParseException("Field past the end of the message");
+        return offset;
+    }
+}
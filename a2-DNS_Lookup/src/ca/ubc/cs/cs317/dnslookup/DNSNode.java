@@ -4,12 +4,14 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are
+ * compared without regard to case, as DNS names are.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     private String hostName;
     private RecordType type;
+    private transient int hash;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
@@ -31,14 +33,19 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        if (type != dnsNode.type) return false;
+        return hostName.equalsIgnoreCase(dnsNode.hostName);
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
+        int result = hash;
+        if (result == 0) {
+            for (int i = 0; i < hostName.length(); i++)
+                result = 31 * result + Character.toLowerCase(hostName.charAt(i));
+            result = 31 * result + type.getCode();
+            hash = result;
+        }
         return result;
     }
 
@@ -0,0 +1,193 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps fully encoded responses of the server mode, so that the answer to a popular question
+ * is only encoded once. Responses are keyed by the question section of the query, with the
+ * name in lowercase, and by whether the query had an EDNS0 OPT record, since the response then
+ * has one too.
+ *
+ * Answering from this cache copies the stored response into a buffer, then patches it in
+ * place: the transaction ID and the question are those of the query, so the client sees the
+ * case of its own name, and every TTL is decreased by the time elapsed since the response was
+ * stored. Looking up and answering allocate nothing.
+ *
+ * A response is stored until the first of its records expires, so its TTLs never go below
+ * zero. Only complete, positive answers are stored; responses are still built from DNSCache
+ * the first time and whenever this cache misses. This class is thread-safe.
+ */
+public class DNSPacketCache {
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final int MAX_KEY_LENGTH = 256 + 4 + 1;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    // Key used to look up an entry, reused by each thread.
+    private static final ThreadLocal<Key> PROBES = ThreadLocal.withInitial(Key::new);
+
+    /** The question section of a query, with the name in lowercase, followed by one byte for
+     * the OPT record.
+     */
+    private static final class Key {
+        private final byte[] bytes = new byte[MAX_KEY_LENGTH];
+        private int length;
+        private int hash;
+
+        /** Fills the key from a query.
+         *
+         * @return false if the question is too long to be a valid question.
+         */
+        boolean set(ByteBuffer query, int questionEnd, boolean edns) {
+            length = questionEnd - 12 + 1;
+            if (length > MAX_KEY_LENGTH || length < 1 + 4 + 1)
+                return false;
+            int h = 0;
+            for (int i = 0; i < length - 1; i++) {
+                byte b = toLowerCase(query.get(12 + i));
+                bytes[i] = b;
+                h = 31 * h + b;
+            }
+            bytes[length - 1] = (byte) (edns ? 1 : 0);
+            hash = 31 * h + bytes[length - 1];
+            return true;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            System.arraycopy(bytes, 0, key.bytes, 0, length);
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return length == key.length && hash == key.hash &&
+                   Arrays.equals(bytes, 0, length, key.bytes, 0, key.length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** A stored response, with the offsets of the TTLs it holds.
+     */
+    private static final class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final long storedTime;
+        final long expirationTime;
+
+        Entry(byte[] response, int[] ttlOffsets, long storedTime, long expirationTime) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.storedTime = storedTime;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /** Writes the stored response to a query into a buffer, if there is one.
+     *
+     * @param query       The query, from position zero to its limit.
+     * @param questionEnd Offset of the end of the question section of the query, which must
+     *                    have exactly one question.
+     * @param edns        true if the query has an OPT record.
+     * @param sizeLimit   Maximum size of the response; a larger stored response is not used,
+     *                    so that the response is encoded again and truncated.
+     * @param response    Buffer the response is written to, from position zero to its limit.
+     * @return true if the response was written, false if there is none.
+     */
+    public boolean answer(ByteBuffer query, int questionEnd, boolean edns, int sizeLimit,
+                          ByteBuffer response) {
+        if (entries.isEmpty())
+            return false;
+        Key probe = PROBES.get();
+        if (!probe.set(query, questionEnd, edns))
+            return false;
+        Entry entry = entries.get(probe);
+        if (entry == null)
+            return false;
+
+        long now = System.currentTimeMillis();
+        if (now >= entry.expirationTime) {
+            entries.remove(probe, entry);
+            return false;
+        }
+        if (entry.response.length > sizeLimit || entry.response.length > response.capacity())
+            return false;
+
+        response.clear();
+        response.put(entry.response);
+        response.putShort(0, query.getShort(0));
+        // Keep the RD bit of the query.
+        response.put(2, (byte) ((response.get(2) & ~0x01) | (query.get(2) & 0x01)));
+        for (int i = 12; i < questionEnd; i++)
+            response.put(i, query.get(i));
+        int elapsed = (int) ((now - entry.storedTime) / 1000);
+        for (int offset : entry.ttlOffsets)
+            response.putInt(offset, Math.max(0, response.getInt(offset) - elapsed));
+        response.flip();
+        return true;
+    }
+
+    /** Stores the response to a query.
+     *
+     * @param query          The query, from position zero to its limit.
+     * @param questionEnd    Offset of the end of the question section of the query.
+     * @param edns           true if the query has an OPT record.
+     * @param response       The response, from position zero to its limit. Its question
+     *                       section must be the same as that of the query, but for case.
+     * @param ttlOffsets     Offsets of the TTL of every record in the response.
+     * @param expirationTime When the first of the records of the response expires, in
+     *                       milliseconds since the epoch.
+     */
+    public void put(ByteBuffer query, int questionEnd, boolean edns, ByteBuffer response,
+                    int[] ttlOffsets, long expirationTime) {
+        long now = System.currentTimeMillis();
+        if (expirationTime <= now + 1000 || response.limit() < questionEnd)
+            return;
+        Key probe = PROBES.get();
+        if (!probe.set(query, questionEnd, edns))
+            return;
+        // A question that was not encoded back the same way is not answered from here.
+        for (int i = 12; i < questionEnd; i++)
+            if (toLowerCase(response.get(i)) != toLowerCase(query.get(i)))
+                return;
+
+        if (entries.size() >= MAX_ENTRIES) {
+            entries.values().removeIf(entry -> entry.expirationTime <= now);
+            // Every response is still valid; start over rather than grow without bound.
+            if (entries.size() >= MAX_ENTRIES)
+                entries.clear();
+        }
+        byte[] bytes = new byte[response.limit()];
+        response.get(0, bytes);
+        entries.put(probe.copy(), new Entry(bytes, ttlOffsets, now, expirationTime));
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+    }
+
+    /** Returns the number of stored responses, including some that may have expired.
+     *
+     * @return The number of responses.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Forgets every stored response.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,13 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Thrown when a DNS message is malformed: a field runs past the end of the message, a name is
+ * too long or uses a compression pointer that could loop, or a record has invalid data.
+ */
+public class DNSParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public DNSParseException(String message) {
+        super(message);
+    }
+}
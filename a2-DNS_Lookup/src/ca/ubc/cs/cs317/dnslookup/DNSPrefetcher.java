@@ -0,0 +1,91 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/** Refreshes popular cache nodes in the background before they expire. Nodes are queued by the
+ * cache as they are read, and started by a single thread at a limited rate so that a burst of
+ * refreshes cannot swamp upstream servers. A node is queued at most once until its refresh
+ * completes, and requests beyond the length of the queue are dropped.
+ */
+public class DNSPrefetcher {
+
+    private static final long TICK_MILLIS = 100;
+
+    private final DNSResolver resolver;
+    private final Queue<DNSNode> queue = new ConcurrentLinkedQueue<>();
+    private final Set<DNSNode> pending = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private volatile int maximumPerSecond;
+    private volatile int maximumQueued;
+    private double tokens;
+
+    /** Creates a new prefetcher and starts its thread.
+     *
+     * @param resolver         Resolver used to refresh nodes.
+     * @param maximumPerSecond The maximum number of refreshes started per second.
+     * @param maximumQueued    The maximum number of nodes waiting to be refreshed.
+     */
+    public DNSPrefetcher(DNSResolver resolver, int maximumPerSecond, int maximumQueued) {
+        this.resolver = resolver;
+        this.maximumPerSecond = maximumPerSecond;
+        this.maximumQueued = maximumQueued;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(this::startRefreshes, TICK_MILLIS, TICK_MILLIS,
+                                           TimeUnit.MILLISECONDS);
+    }
+
+    public void setMaximumPerSecond(int maximumPerSecond) {
+        this.maximumPerSecond = maximumPerSecond;
+    }
+
+    /** Asks for a node to be refreshed. Does nothing if the node is already queued or being
+     * refreshed, or if the queue is full.
+     *
+     * @param node The node to refresh.
+     */
+    public void request(DNSNode node) {
+        if (pending.size() >= maximumQueued || !pending.add(node))
+            return;
+        queue.add(node);
+    }
+
+    /** Returns the number of nodes queued or being refreshed.
+     *
+     * @return The number of pending refreshes.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Stops the prefetcher thread. Refreshes already started still complete.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** Starts as many queued refreshes as the rate limit allows. Runs on the prefetcher thread
+     * every tick; tokens accumulate at the maximum rate, up to one second's worth.
+     */
+    private void startRefreshes() {
+        int rate = maximumPerSecond;
+        tokens = Math.min(rate, tokens + rate * TICK_MILLIS / 1000.0);
+        DNSNode node;
+        while (tokens >= 1 && (node = queue.poll()) != null) {
+            tokens--;
+            DNSNode refreshed = node;
+            try {
+                resolver.refresh(refreshed).whenComplete((results, ex) ->
+                        pending.remove(refreshed));
+            } catch (RuntimeException e) {
+                pending.remove(refreshed);
+            }
+        }
+    }
+}
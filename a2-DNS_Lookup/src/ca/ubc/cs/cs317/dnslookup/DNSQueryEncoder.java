@@ -0,0 +1,152 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Encodes DNS queries into pooled direct buffers. The question section of each node (its name
+ * in wire format, type and class) is encoded once and cached, so encoding a query only copies
+ * the cached question after a fixed header. A buffer can be sent any number of times, for
+ * example for retries; only its transaction ID changes between sends.
+ *
+ * A query can carry an EDNS0 OPT pseudo-record (RFC 6891) in its additional section, which
+ * tells the server how large a UDP response we can receive.
+ *
+ * Buffers are taken with encode and must be given back with release once the query they hold
+ * will not be sent again. This class is thread-safe.
+ */
+public class DNSQueryEncoder {
+
+    public static final int BUFFER_SIZE = 512;
+
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_OPT = 41;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_CACHED_QUESTIONS = 10000;
+
+    private final DNSBufferPool pool = new DNSBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final ConcurrentHashMap<DNSNode, byte[]> questions = new ConcurrentHashMap<>();
+
+    /** Encodes a query for a node into a buffer from the pool, without an OPT record.
+     *
+     * @param node The host name and record type of the question.
+     * @return A buffer holding the query.
+     * @throws IllegalArgumentException If the host name cannot be encoded.
+     */
+    public ByteBuffer encode(DNSNode node) {
+        return encode(node, 0);
+    }
+
+    /** Encodes a query for a node into a buffer from the pool. The transaction ID is left as
+     * zero, and no recursion is requested. The buffer is ready to be sent: its position is zero
+     * and its limit is the end of the query.
+     *
+     * @param node        The host name and record type of the question.
+     * @param payloadSize The UDP payload size advertised in an OPT record, or 0 to send the
+     *                    query without one.
+     * @return A buffer holding the query.
+     * @throws IllegalArgumentException If the host name cannot be encoded.
+     */
+    public ByteBuffer encode(DNSNode node, int payloadSize) {
+        byte[] question = questions.get(node);
+        if (question == null) {
+            question = encodeQuestion(node);
+            // Names that are only looked up once would fill the cache; start over when full.
+            if (questions.size() >= MAX_CACHED_QUESTIONS)
+                questions.clear();
+            questions.put(node, question);
+        }
+
+        ByteBuffer buffer = pool.acquire();
+        buffer.putShort((short) 0);  // ID, filled in by the query engine
+        buffer.putShort((short) 0);  // Flags: standard query, no recursion
+        buffer.putShort((short) 1);  // QDCOUNT
+        buffer.putShort((short) 0);  // ANCOUNT
+        buffer.putShort((short) 0);  // NSCOUNT
+        buffer.putShort((short) (payloadSize > 0 ? 1 : 0));  // ARCOUNT
+        buffer.put(question);
+        if (payloadSize > 0) {
+            buffer.put((byte) 0);                    // Root name
+            buffer.putShort((short) TYPE_OPT);
+            buffer.putShort((short) payloadSize);    // Class: UDP payload size
+            buffer.putInt(0);                        // Extended RCODE, version 0, no flags
+            buffer.putShort((short) 0);              // No options
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Gives a buffer back to the pool once its query will not be sent again.
+     *
+     * @param buffer A buffer returned by encode.
+     */
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    /** Sets the transaction ID of an encoded query.
+     *
+     * @param query         The query.
+     * @param transactionID The new transaction ID.
+     */
+    public static void setTransactionID(ByteBuffer query, int transactionID) {
+        query.putShort(0, (short) transactionID);
+    }
+
+    /** Returns the transaction ID of an encoded query.
+     *
+     * @param query The query.
+     * @return The transaction ID.
+     */
+    public static short getTransactionID(ByteBuffer query) {
+        return query.getShort(0);
+    }
+
+    /** Encodes the question section for a node: the name as a sequence of labels, followed by
+     * the full 16-bit type and the class IN.
+     *
+     * @param node The host name and record type of the question.
+     * @return The encoded question.
+     * @throws IllegalArgumentException If the host name has an empty or overlong label, is
+     *                                  longer than 255 bytes, or is not ASCII.
+     */
+    private static byte[] encodeQuestion(DNSNode node) {
+        String hostName = node.getHostName();
+        int length = hostName.length();
+        if (length > 0 && hostName.charAt(length - 1) == '.')
+            length--;
+
+        byte[] name = new byte[MAX_NAME_LENGTH + 1];
+        int index = 0;
+        int labelStart = 0;
+        while (labelStart < length) {
+            int labelEnd = hostName.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > length)
+                labelEnd = length;
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH ||
+                index + 1 + labelLength >= MAX_NAME_LENGTH)
+                throw new IllegalArgumentException("Invalid host name: " + hostName);
+
+            name[index++] = (byte) labelLength;
+            for (int i = labelStart; i < labelEnd; i++) {
+                char c = hostName.charAt(i);
+                if (c > 0x7F)
+                    throw new IllegalArgumentException("Invalid host name: " + hostName);
+                name[index++] = (byte) c;
+            }
+            labelStart = labelEnd + 1;
+        }
+        name[index++] = 0;
+
+        byte[] question = new byte[index + 4];
+        System.arraycopy(name, 0, question, 0, index);
+        int type = node.getType().getCode();
+        question[index] = (byte) (type >> 8);
+        question[index + 1] = (byte) type;
+        question[index + 2] = (byte) (CLASS_IN >> 8);
+        question[index + 3] = (byte) CLASS_IN;
+        return question;
+    }
+}
@@ -0,0 +1,385 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** This class multiplexes any number of outstanding DNS queries over a single non-blocking UDP
+ * channel. A selector thread sends queued questions, receives responses and matches each
+ * response to the pending query with the same server, port, transaction ID and question. Each
+ * query is completed on its own, so a slow or silent server only delays the queries that were
+ * actually sent to it.
+ *
+ * Responses are received straight into direct buffers leased from a pool, and a response is
+ * handed over in the buffer it was received in. Pending queries are indexed by transaction ID
+ * in an array. A datagram that does not match a pending query is dropped, and its buffer is
+ * reused for the next one, so the receive loop allocates nothing for it.
+ *
+ * Receive buffers are large enough for any UDP payload size a query may advertise with EDNS0,
+ * up to MAX_RESPONSE_SIZE. A response that was truncated anyway can be asked for again over TCP
+ * with sendOverTcp, on a pooled connection to the server that is shared by all TCP queries.
+ */
+public class DNSQueryEngine implements Closeable {
+
+    public static final int MAX_RESPONSE_SIZE = 4096;
+
+    private static final int MAX_IN_FLIGHT = 60000;
+    private static final int RECEIVE_POOL_SIZE = 256;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Executor completionExecutor;
+    private final Thread selectorThread;
+    private final DNSTcpTransport tcp;
+
+    private final AtomicReferenceArray<PendingQuery> pending =
+            new AtomicReferenceArray<>(0x10000);
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final DNSBufferPool receivePool =
+            new DNSBufferPool(MAX_RESPONSE_SIZE, RECEIVE_POOL_SIZE);
+    private final Queue<PendingQuery> outbound = new ConcurrentLinkedQueue<>();
+    // Only accessed by the selector thread.
+    private final PriorityQueue<PendingQuery> deadlines =
+            new PriorityQueue<>(Comparator.comparingLong(query -> query.deadline));
+    private final DNSMessageReader questionReader = new DNSMessageReader();
+
+    private volatile boolean running = true;
+
+    /** A query that has been handed to the engine and has not been answered or timed out yet.
+     */
+    private static class PendingQuery {
+        final DNSNode node;
+        final InetSocketAddress server;
+        final int transactionID;
+        final ByteBuffer question;
+        final long timeoutMillis;
+        final CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        // Completed once the selector thread no longer reads the question; may be null.
+        final CompletableFuture<Void> released;
+        long deadline;
+
+        PendingQuery(DNSNode node, InetSocketAddress server, int transactionID,
+                     ByteBuffer question, long timeoutMillis, CompletableFuture<Void> released) {
+            this.node = node;
+            this.server = server;
+            this.transactionID = transactionID;
+            this.question = question.duplicate();
+            this.timeoutMillis = timeoutMillis;
+            this.released = released;
+        }
+
+        void release() {
+            if (released != null)
+                released.complete(null);
+        }
+    }
+
+    /** Creates a new engine bound to an ephemeral local port. Completions are delivered on the
+     * common fork-join pool, so that parsing a response never holds up the selector thread.
+     *
+     * @throws IOException if the channel or selector could not be opened.
+     */
+    public DNSQueryEngine() throws IOException {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Creates a new engine bound to an ephemeral local port.
+     *
+     * @param completionExecutor Executor used to complete the future of each query.
+     * @throws IOException if the channel or selector could not be opened.
+     */
+    public DNSQueryEngine(Executor completionExecutor) throws IOException {
+        this.completionExecutor = completionExecutor;
+        this.tcp = new DNSTcpTransport(completionExecutor);
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(null);
+        this.key = this.channel.register(selector, SelectionKey.OP_READ);
+
+        this.selectorThread = new Thread(this::run, "dns-query-engine");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /** Sends a query to a server. A transaction ID that is not used by any other outstanding
+     * query is chosen by the engine and written into the first two bytes of the query before
+     * this method returns. The query is sent from the start of the buffer to its limit, and the
+     * buffer must not be changed until the returned future is completed by the engine; it may
+     * then be sent again, for example to retry the query. A caller that cancels the query must
+     * use the overload below to know when the buffer is free. The returned future is
+     * completed with the matching response, or completed exceptionally with a
+     * SocketTimeoutException if no matching response arrives in time. Cancelling the future
+     * withdraws the query. The response should be released once it has been parsed, so that
+     * its buffer can be reused.
+     *
+     * @param node          Host name and record type in the question section of the query.
+     * @param server        Address of the server the query is sent to.
+     * @param port          UDP port of the server.
+     * @param query         Complete query packet, such as one encoded by DNSQueryEncoder.
+     *                      Its transaction ID is overwritten.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<DNSResponse> send(DNSNode node, InetAddress server, int port,
+                                               ByteBuffer query, long timeoutMillis) {
+        return send(node, server, port, query, timeoutMillis, null);
+    }
+
+    /** Sends a query to a server, as send above, and tells the caller when the buffer of the
+     * query can be reused. A query whose future is completed early, for example because it
+     * was cancelled, may still be about to be sent by the selector thread; its buffer must
+     * not be changed until released is completed as well.
+     *
+     * @param node          Host name and record type in the question section of the query.
+     * @param server        Address of the server the query is sent to.
+     * @param port          UDP port of the server.
+     * @param query         Complete query packet. Its transaction ID is overwritten.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @param released      Completed, possibly on the selector thread, once the engine no
+     *                      longer reads the query: after it was sent, or dropped unsent.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<DNSResponse> send(DNSNode node, InetAddress server, int port,
+                                               ByteBuffer query, long timeoutMillis,
+                                               CompletableFuture<Void> released) {
+        if (!running) {
+            if (released != null)
+                released.complete(null);
+            CompletableFuture<DNSResponse> closed = new CompletableFuture<>();
+            closed.completeExceptionally(new IOException("Query engine is closed"));
+            return closed;
+        }
+        if (pendingCount.incrementAndGet() > MAX_IN_FLIGHT) {
+            pendingCount.decrementAndGet();
+            if (released != null)
+                released.complete(null);
+            CompletableFuture<DNSResponse> full = new CompletableFuture<>();
+            full.completeExceptionally(new IOException("Too many outstanding queries"));
+            return full;
+        }
+
+        InetSocketAddress address = new InetSocketAddress(server, port);
+        PendingQuery candidate;
+        do {
+            int transactionID = ThreadLocalRandom.current().nextInt(0x10000);
+            candidate = new PendingQuery(node, address, transactionID, query, timeoutMillis,
+                                         released);
+        } while (!pending.compareAndSet(candidate.transactionID, null, candidate));
+
+        final PendingQuery pendingQuery = candidate;
+        DNSQueryEncoder.setTransactionID(query, pendingQuery.transactionID);
+        pendingQuery.future.whenComplete((response, ex) -> {
+            if (pending.compareAndSet(pendingQuery.transactionID, pendingQuery, null))
+                pendingCount.decrementAndGet();
+        });
+
+        outbound.add(pendingQuery);
+        selector.wakeup();
+        return pendingQuery.future;
+    }
+
+    /** Sends a query to a server over TCP, typically after its UDP response was truncated. The
+     * query may be the same buffer that was sent over UDP, once that query is completed. The
+     * returned future is completed as for send.
+     *
+     * @param node          Host name and record type in the question section of the query.
+     * @param server        Address of the server the query is sent to.
+     * @param port          TCP port of the server.
+     * @param query         Complete query packet. Its transaction ID is overwritten.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<DNSResponse> sendOverTcp(DNSNode node, InetAddress server, int port,
+                                                      ByteBuffer query, long timeoutMillis) {
+        if (!running) {
+            CompletableFuture<DNSResponse> closed = new CompletableFuture<>();
+            closed.completeExceptionally(new IOException("Query engine is closed"));
+            return closed;
+        }
+        return tcp.send(node, server, port, query, timeoutMillis);
+    }
+
+    /** Returns the number of TCP connections to servers that are currently open.
+     *
+     * @return The number of open TCP connections.
+     */
+    public int getTcpConnectionCount() {
+        return tcp.getConnectionCount();
+    }
+
+    /** Returns the number of queries that have been sent and are still waiting for a response.
+     *
+     * @return The number of outstanding queries.
+     */
+    public int getOutstandingCount() {
+        return pendingCount.get();
+    }
+
+    /** Stops the selector thread and closes the channel. Every outstanding query is completed
+     * exceptionally.
+     */
+    @Override
+    public void close() {
+        running = false;
+        tcp.close();
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a channel we are discarding.
+        }
+        PendingQuery unsent;
+        while ((unsent = outbound.poll()) != null)
+            unsent.release();
+        for (int i = 0; i < pending.length(); i++) {
+            PendingQuery query = pending.get(i);
+            if (query != null)
+                query.future.completeExceptionally(new IOException("Query engine is closed"));
+        }
+    }
+
+    /** Main loop of the selector thread.
+     */
+    private void run() {
+        while (running) {
+            try {
+                long wait = expireQueries();
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                flushOutbound();
+                receiveResponses();
+            } catch (IOException e) {
+                if (running)
+                    System.err.println("Query engine error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Fails every query whose deadline has passed.
+     *
+     * @return The number of milliseconds until the next deadline, or 0 if there is none.
+     */
+    private long expireQueries() {
+        long now = System.currentTimeMillis();
+        while (!deadlines.isEmpty()) {
+            PendingQuery query = deadlines.peek();
+            if (query.future.isDone()) {
+                deadlines.poll();
+            } else if (query.deadline <= now) {
+                deadlines.poll();
+                completionExecutor.execute(() -> query.future.completeExceptionally(
+                        new SocketTimeoutException("No response from " + query.server)));
+            } else {
+                return query.deadline - now;
+            }
+        }
+        return 0;
+    }
+
+    /** Sends every queued query. A query the channel cannot take right now stays queued, and
+     * the selector also waits for the channel to become writable, so that the query is sent
+     * as soon as the channel has room for it. Queries are released once they leave the queue,
+     * whether they were sent or dropped.
+     *
+     * @throws IOException if the channel fails.
+     */
+    private void flushOutbound() throws IOException {
+        PendingQuery query;
+        while ((query = outbound.peek()) != null) {
+            if (query.future.isDone()) {
+                outbound.poll();
+                query.release();
+                continue;
+            }
+            query.question.rewind();
+            try {
+                if (channel.send(query.question, query.server) == 0) {
+                    setWriteInterest(true);
+                    return;
+                }
+            } catch (IOException e) {
+                // An unreachable server only fails its own query.
+                PendingQuery failed = query;
+                completionExecutor.execute(() -> failed.future.completeExceptionally(e));
+            }
+            outbound.poll();
+            query.release();
+            query.deadline = System.currentTimeMillis() + query.timeoutMillis;
+            deadlines.add(query);
+        }
+        setWriteInterest(false);
+    }
+
+    /** Adds OP_WRITE to the interest set of the channel, or removes it.
+     *
+     * @param enabled true while queries are waiting for room in the channel.
+     */
+    private void setWriteInterest(boolean enabled) {
+        int ops = enabled ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /** Reads every datagram currently available and completes the queries they answer.
+     * Datagrams that do not match an outstanding query are discarded. Each datagram is
+     * received into a buffer from the pool; the buffer of a matching datagram is handed over
+     * with its response, and the buffer of a discarded one is used for the next datagram.
+     *
+     * @throws IOException if the channel fails.
+     */
+    private void receiveResponses() throws IOException {
+        ByteBuffer buffer = receivePool.acquire();
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                if (from == null)
+                    return;
+                buffer.flip();
+                if (buffer.remaining() < 12)
+                    continue;
+
+                int transactionID = buffer.getShort(0) & 0xFFFF;
+                PendingQuery query = pending.get(transactionID);
+                if (query == null || query.future.isDone() || !query.server.equals(from))
+                    continue;
+
+                // Check the question in place, so a stray response costs no allocation.
+                try {
+                    if (!questionReader.read(buffer).questionMatches(query.node))
+                        continue;
+                } catch (DNSParseException e) {
+                    continue;
+                }
+
+                DNSResponse response = new DNSResponse(buffer, query.server, receivePool);
+                completionExecutor.execute(() -> {
+                    if (!query.future.complete(response))
+                        response.release();
+                });
+                buffer = receivePool.acquire();
+            }
+        } finally {
+            receivePool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,1074 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** An iterative DNS resolver. Queries start at the closest name server found in the cache (or
+ * the root server) and follow referrals until an authoritative answer is found. Every step of
+ * a resolution, including each delegation hop, each lookup of a name server address that came
+ * without glue and each CNAME redirection, is a continuation of the previous one, so a caller
+ * never blocks and any number of resolutions can be in progress at the same time.
+ *
+ * Lookups that miss the cache are coalesced: while a lookup for a node is in flight, any other
+ * lookup for the same node attaches to it instead of sending its own queries upstream.
+ *
+ * When prefetching is enabled, popular nodes that are about to expire from the cache are looked
+ * up again in the background, so that callers keep getting answers from the cache.
+ *
+ * When serving stale records is enabled, a node whose records expired recently is still
+ * answered from the cache (RFC 8767) if its name servers fail, or do not answer within a short
+ * budget. The lookup carries on in the background and refreshes the cache when it completes.
+ *
+ * Queries advertise a larger UDP payload size with an EDNS0 OPT record, so that most large
+ * answers fit in one datagram. A server that rejects the OPT record is asked again without it,
+ * and a response that is truncated anyway is asked for again over TCP.
+ *
+ * The response time of every server is recorded in an infrastructure cache, and the name
+ * servers of a zone are tried fastest first. With staggered queries enabled, the next server
+ * is also asked when the previous one has not answered after a short delay, and the first
+ * usable response wins.
+ *
+ * The IPv4 and IPv6 addresses of a host can be looked up together. The AAAA lookup starts as
+ * soon as the A lookup has found the name servers of the zone of the host, so it reuses the
+ * delegation the A lookup followed, and both final queries are in flight at the same time.
+ */
+public class DNSResolver {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final long QUERY_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_UDP_ATTEMPTS = 3;
+    private static final long LOOKUP_TIMEOUT_MILLIS = 60000;
+    private static final int PREFETCH_PER_SECOND = 20;
+    private static final int PREFETCH_QUEUE_LENGTH = 1000;
+    private static final long STALE_ANSWER_BUDGET_MILLIS = 1800;
+    private static final long STALE_GRACE_SECONDS = 24 * 60 * 60;
+    private static final long MIN_STAGGER_MILLIS = 50;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 4;
+    private static final int MAX_REFERRALS = 16;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static final int MIN_EDNS_PAYLOAD_SIZE = 512;
+
+    private final DNSQueryEngine engine;
+    private final DNSCache cache;
+    private final DNSQueryEncoder encoder = new DNSQueryEncoder();
+    private final DNSInfrastructureCache infrastructure = new DNSInfrastructureCache();
+
+    // Each thread that handles responses reads them with its own reader.
+    private static final ThreadLocal<DNSMessageReader> READERS =
+            ThreadLocal.withInitial(DNSMessageReader::new);
+    private final ConcurrentMap<DNSNode, CompletableFuture<Set<ResourceRecord>>> inFlight =
+            new ConcurrentHashMap<>();
+    // Dual lookups waiting for the A lookup of a host to reach the zone of the host, by the
+    // type A node being looked up, which compares host names without regard to case.
+    private final ConcurrentMap<DNSNode, CompletableFuture<Void>> delegationWatchers =
+            new ConcurrentHashMap<>();
+    // Servers that answered a query with an OPT record with FORMERR or NOTIMP.
+    private final Set<InetAddress> noEdnsServers = ConcurrentHashMap.newKeySet();
+
+    private volatile InetAddress rootServer;
+    private volatile boolean verboseTracing = false;
+    private volatile boolean serveStale = false;
+    private volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+    private volatile long staggerDelay = 0;
+    private DNSPrefetcher prefetcher;
+
+    /** Creates a new resolver.
+     *
+     * @param engine     Engine used to send queries and receive responses.
+     * @param cache      Cache where results are looked up and stored.
+     * @param rootServer Address of the root server where searches start.
+     */
+    public DNSResolver(DNSQueryEngine engine, DNSCache cache, InetAddress rootServer) {
+        this.engine = engine;
+        this.cache = cache;
+        this.rootServer = rootServer;
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public boolean isVerboseTracing() {
+        return verboseTracing;
+    }
+
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    public DNSInfrastructureCache getInfrastructureCache() {
+        return infrastructure;
+    }
+
+    public boolean isServeStale() {
+        return serveStale;
+    }
+
+    /** Turns serving stale records on or off. While it is on, the cache keeps records for
+     * STALE_GRACE_SECONDS after they expire; while it is off, they are removed as soon as they
+     * expire, so they take no room from live records.
+     *
+     * @param serveStale true to serve stale records when lookups fail.
+     */
+    public void setServeStale(boolean serveStale) {
+        this.serveStale = serveStale;
+        cache.setStaleGracePeriod(serveStale ? STALE_GRACE_SECONDS : 0);
+    }
+
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /** Sets the UDP payload size advertised in the OPT record of each query. 1232 bytes avoids
+     * IP fragmentation on nearly every path; larger sizes save more fallbacks to TCP.
+     *
+     * @param payloadSize The payload size in bytes, or 0 to send queries without EDNS0.
+     * @throws IllegalArgumentException If the size is not 0 and is smaller than 512 bytes or
+     *                                  larger than the query engine can receive.
+     */
+    public void setEdnsPayloadSize(int payloadSize) {
+        if (payloadSize != 0 && (payloadSize < MIN_EDNS_PAYLOAD_SIZE ||
+                                 payloadSize > DNSQueryEngine.MAX_RESPONSE_SIZE))
+            throw new IllegalArgumentException("EDNS payload size must be between " +
+                                               MIN_EDNS_PAYLOAD_SIZE + " and " +
+                                               DNSQueryEngine.MAX_RESPONSE_SIZE);
+        this.ednsPayloadSize = payloadSize;
+    }
+
+    public long getStaggerDelay() {
+        return staggerDelay;
+    }
+
+    /** Turns staggered queries to the name servers of a zone on or off. When they are on, the
+     * next server is asked if the previous one has not answered within its expected response
+     * time, but never sooner than 50 ms or later than the given delay.
+     *
+     * @param staggerDelay The longest delay before the next server is asked, in milliseconds,
+     *                     or 0 to ask the servers one after another.
+     * @throws IllegalArgumentException If the delay is negative.
+     */
+    public void setStaggerDelay(long staggerDelay) {
+        if (staggerDelay < 0)
+            throw new IllegalArgumentException("Stagger delay must not be negative");
+        this.staggerDelay = staggerDelay == 0 ? 0 : Math.max(MIN_STAGGER_MILLIS, staggerDelay);
+    }
+
+    public synchronized boolean isPrefetchEnabled() {
+        return prefetcher != null;
+    }
+
+    /** Turns refreshing of popular cache nodes before they expire on or off. While it is on,
+     * this resolver is the refresh listener of its cache.
+     *
+     * @param enabled true to refresh popular nodes in the background, false to stop.
+     */
+    public synchronized void setPrefetchEnabled(boolean enabled) {
+        if (enabled && prefetcher == null) {
+            prefetcher = new DNSPrefetcher(this, PREFETCH_PER_SECOND, PREFETCH_QUEUE_LENGTH);
+            cache.setRefreshListener(prefetcher::request);
+        } else if (!enabled && prefetcher != null) {
+            cache.setRefreshListener(null);
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    /** The chain of lookups that are waiting, directly or through a CNAME or a name server
+     * address, on the lookup that carries the path. A lookup must not attach to an in-flight
+     * lookup of a node that is already on its own path, or it would wait on itself. The path
+     * also counts the referrals followed by its lookup, so that a lame or upward referral
+     * can't send the lookup back and forth between the servers of a zone.
+     */
+    private static final class LookupPath {
+        private final DNSNode node;
+        private final LookupPath parent;
+        // Guarded by the path.
+        private int referrals;
+        private int zoneDepth = -1;
+
+        private LookupPath(DNSNode node, LookupPath parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+
+        private static boolean contains(LookupPath path, DNSNode node) {
+            for (; path != null; path = path.parent)
+                if (path.node.equals(node))
+                    return true;
+            return false;
+        }
+
+        /** Records a referral to a zone cut, unless it is not deeper than the zone cut of the
+         * last referral or the lookup has already followed MAX_REFERRALS referrals.
+         *
+         * @param depth Number of labels of the zone referred to.
+         * @return true if the referral may be followed.
+         */
+        private synchronized boolean followReferral(int depth) {
+            if (depth <= zoneDepth || referrals >= MAX_REFERRALS)
+                return false;
+            zoneDepth = depth;
+            referrals++;
+            return true;
+        }
+    }
+
+    /** Finds all the results for a specific node. The returned future is completed once the
+     * results are in the cache, or with an empty set if no result could be found.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return A future completed with the set of resource records for the query.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        return getResults(node, 0, null);
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host. The A lookup starts right away; the AAAA
+     * lookup starts once the name servers of a zone enclosing the host, below the top level,
+     * are known, either from the cache or from a referral received by the A lookup or by the
+     * lookup of a CNAME it follows. The AAAA lookup then starts at the same zone cut as the A
+     * lookup, instead of walking the delegation from the root again. If the A lookup
+     * completes first, the AAAA lookup starts then.
+     *
+     * @param hostName The host name.
+     * @return A future completed with the AAAA records of the host followed by its A records,
+     *         the order in which dual-stack clients should try them (RFC 8305). A lookup that
+     *         fails only leaves its records out.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAddresses(String hostName) {
+        DNSNode nodeV4 = new DNSNode(hostName, RecordType.A);
+        CompletableFuture<Void> delegated;
+        if (hasZoneServers(hostName)) {
+            delegated = CompletableFuture.completedFuture(null);
+        } else {
+            delegated = delegationWatchers.computeIfAbsent(nodeV4,
+                                                           node -> new CompletableFuture<>());
+            CompletableFuture<Void> watcher = delegated;
+            delegated.whenComplete((result, ex) -> delegationWatchers.remove(nodeV4, watcher));
+        }
+
+        CompletableFuture<Set<ResourceRecord>> addressesV4 = resolve(nodeV4);
+        addressesV4.whenComplete((results, ex) -> delegated.complete(null));
+        CompletableFuture<Set<ResourceRecord>> addressesV6 = delegated.thenCompose(
+                ready -> resolve(new DNSNode(hostName, RecordType.AAAA)));
+
+        return addressesV6.handle((results, ex) -> ex == null ? results
+                                                              : Collections.<ResourceRecord>emptySet())
+                .thenCombine(addressesV4.handle((results, ex) -> ex == null ? results
+                                                              : Collections.<ResourceRecord>emptySet()),
+                             (v6, v4) -> {
+                                 Set<ResourceRecord> merged = new LinkedHashSet<>(v6);
+                                 merged.addAll(v4);
+                                 return merged;
+                             });
+    }
+
+    /**
+     * Check if the cache has the name servers of a zone that encloses a host name, other than
+     * the root and the top-level domains, whose servers every lookup goes through. A lookup of
+     * the host starts at the closest such zone.
+     *
+     * @param hostName The host name.
+     *
+     * @return true if the name servers are cached.
+     */
+    private boolean hasZoneServers(String hostName) {
+        DNSDelegationIndex.Delegation delegation = cache.findZoneCut(hostName);
+        return delegation != null && delegation.getZone().indexOf('.') != -1;
+    }
+
+    /**
+     * Let a dual lookup waiting on the A lookup of an alias wait on the A lookup of its
+     * canonical name instead, since the referrals of the A lookup are for that name from now
+     * on.
+     *
+     * @param alias     Type A node of the alias.
+     * @param canonical Type A node of the canonical name.
+     */
+    private void forwardDelegationWatcher(DNSNode alias, DNSNode canonical) {
+        CompletableFuture<Void> watcher = delegationWatchers.get(alias);
+        if (watcher == null || watcher.isDone())
+            return;
+        if (hasZoneServers(canonical.getHostName())) {
+            watcher.complete(null);
+        } else if (delegationWatchers.putIfAbsent(canonical, watcher) == null) {
+            watcher.whenComplete((result, ex) -> delegationWatchers.remove(canonical, watcher));
+        }
+    }
+
+    /** Looks up a node upstream even if it is still in the cache, so that its records are
+     * replaced before they expire. Shares an in-flight lookup of the same node, if any.
+     *
+     * @param node Host name and record type to be refreshed.
+     * @return A future completed with the set of resource records for the query.
+     */
+    public CompletableFuture<Set<ResourceRecord>> refresh(DNSNode node) {
+        return getSharedUpstreamResults(node, 0, null);
+    }
+
+    /** Returns the number of distinct nodes currently being looked up upstream.
+     *
+     * @return The number of in-flight lookups.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Finds all the result for a specific node.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of chained lookups due to CNAME
+     *                         redirection. The initial call should be made with 0 (zero), while
+     *                         lookups regarding CNAME results should increment this value by 1.
+     *                         Once this value reaches MAX_INDIRECTION_LEVEL, the function prints
+     *                         an error message and returns an empty set.
+     * @param path             Lookups waiting on this one, or null for a lookup started by a
+     *                         caller of resolve.
+     * @return A future completed with the set of resource records for the query.
+     */
+    private CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node,
+                                                              int indirectionLevel,
+                                                              LookupPath path) {
+
+        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        }
+
+        // First check cache for answer, or for a CNAME we can follow.
+        Set<ResourceRecord> answer = getCachedResults(node, path);
+        if (!answer.isEmpty())
+            return CompletableFuture.completedFuture(answer);
+        CompletableFuture<Set<ResourceRecord>> redirected = followCachedCNAME(node,
+                                                                              indirectionLevel,
+                                                                              path);
+        if (redirected != null)
+            return redirected;
+
+        // A query that is known to have no results is answered from the cache as well.
+        if (cache.hasNegativeResult(node))
+            return CompletableFuture.completedFuture(Collections.emptySet());
+
+        // A lookup that is already waiting on this node would never complete if it waited
+        // on itself, so a loop of CNAMEs or name servers ends here.
+        if (LookupPath.contains(path, node))
+            return CompletableFuture.completedFuture(Collections.emptySet());
+
+        // Recently expired records are a fallback if the name servers fail or are too slow.
+        // Completing the fallback does not cancel the lookup, which still refreshes the cache.
+        Set<ResourceRecord> stale = serveStale ? cache.getStaleResults(node)
+                                               : Collections.emptySet();
+        CompletableFuture<Set<ResourceRecord>> upstream =
+                getSharedUpstreamResults(node, indirectionLevel, path);
+        if (stale.isEmpty())
+            return upstream;
+        return upstream.handle((results, ex) -> ex == null && !results.isEmpty() ? results : stale)
+                       .completeOnTimeout(stale, STALE_ANSWER_BUDGET_MILLIS,
+                                          TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finds all the result for a specific node upstream, sharing the lookup with any other
+     * lookup of the same node that is in flight.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel See getResults.
+     * @param path             Lookups waiting on this one, not including this one.
+     * @return A future completed with the set of resource records for the query.
+     */
+    private CompletableFuture<Set<ResourceRecord>> getSharedUpstreamResults(DNSNode node,
+                                                                            int indirectionLevel,
+                                                                            LookupPath path) {
+
+        // If the same node is already being looked up, share its result. Each caller gets
+        // its own copy, so one caller cancelling does not affect the others.
+        CompletableFuture<Set<ResourceRecord>> flight = new CompletableFuture<>();
+        CompletableFuture<Set<ResourceRecord>> existing = inFlight.putIfAbsent(node, flight);
+        if (existing != null)
+            return existing.copy();
+
+        // Two lookups started by different callers could still end up waiting on each other,
+        // so an in-flight lookup gives up after a generous timeout.
+        flight.whenComplete((results, ex) -> inFlight.remove(node, flight));
+        flight.completeOnTimeout(Collections.emptySet(), LOOKUP_TIMEOUT_MILLIS,
+                                 TimeUnit.MILLISECONDS);
+        getUpstreamResults(node, indirectionLevel, new LookupPath(node, path))
+                .whenComplete((results, ex) -> {
+                    if (ex != null)
+                        flight.completeExceptionally(ex);
+                    else
+                        flight.complete(results);
+                });
+        return flight.copy();
+    }
+
+    /**
+     * Finds all the result for a specific node that is not in the cache, by querying the
+     * nearest name servers.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel See getResults.
+     * @param path             Lookups waiting on this one, including this one.
+     * @return A future completed with the set of resource records for the query.
+     */
+    private CompletableFuture<Set<ResourceRecord>> getUpstreamResults(DNSNode node,
+                                                                      int indirectionLevel,
+                                                                      LookupPath path) {
+
+        // Determine which name servers to send to, and go over them until one succeeds.
+        return getNextNameServer(node, true, path).thenCompose(servers -> {
+            if (servers.isEmpty())
+                // This actually would not happen, but just for safe.
+                return retrieveResultsFromServer(node, rootServer, path);
+            return retrieveResultsFromNameServers(node, servers, -1, path);
+        }).thenCompose(retCode -> {
+            // Check if we have an answer, if not check for a CNAME.
+            Set<ResourceRecord> results = cache.peekCachedResults(node);
+            if (!results.isEmpty())
+                return CompletableFuture.completedFuture(results);
+            CompletableFuture<Set<ResourceRecord>> cname = followCachedCNAME(node,
+                                                                             indirectionLevel,
+                                                                             path);
+            if (cname != null)
+                return cname;
+            // If we don't have a CNAME neither, it's an exception.
+            return CompletableFuture.completedFuture(Collections.<ResourceRecord>emptySet());
+        });
+    }
+
+    /**
+     * Returns the results cached for a node. Only lookups made for a caller of resolve count as
+     * lookups of the node, so that the resolver's own reads, for name servers and refreshes, do
+     * not keep the node popular.
+     *
+     * @param node Host name and record type to be looked up.
+     * @param path Lookups waiting on the lookup, or null for a lookup made for a caller of
+     *             resolve.
+     *
+     * @return A potentially empty set of resource records.
+     */
+    private Set<ResourceRecord> getCachedResults(DNSNode node, LookupPath path) {
+        return path == null ? cache.getCachedResults(node) : cache.peekCachedResults(node);
+    }
+
+    /**
+     * Continue a search with the canonical name of a node, if the cache has a CNAME for it.
+     *
+     * @param node             The node whose host name may be an alias.
+     * @param indirectionLevel The indirection level of the search for node.
+     * @param path             Lookups waiting on the search for node.
+     *
+     * @return A future for the results of the canonical name, or null if no CNAME is cached.
+     */
+    private CompletableFuture<Set<ResourceRecord>> followCachedCNAME(DNSNode node,
+                                                                     int indirectionLevel,
+                                                                     LookupPath path) {
+        Set<ResourceRecord> cnames = getCachedResults(
+                new DNSNode(node.getHostName(), RecordType.CNAME), path);
+        if (cnames.isEmpty())
+            return null;
+
+        ResourceRecord result = cnames.iterator().next();
+        DNSNode canonical = new DNSNode(result.getTextResult(), node.getType());
+        if (node.getType() == RecordType.A && !delegationWatchers.isEmpty())
+            forwardDelegationWatcher(node, canonical);
+        return getResults(canonical, indirectionLevel + 1, path);
+    }
+
+    /**
+     * Find a nearest name server in cache for a DNS query.
+     *
+     * @param node   The DNS query node need to be addressed.
+     * @param robust Fall back to the servers of upper levels, and finally to the root server,
+     *               if the addresses of the nearest name servers can't be found. If the address
+     *               is for the first question packet of a query, robust should be true meaning
+     *               we send it to a root server by default. But if it's not the first packet
+     *               then we shouldn't return the root server, otherwise we may have a dead loop.
+     * @param path   Lookups waiting on the search for node, including it.
+     *
+     * @return A future completed with a list of type A resource records of the nearest name
+     *         servers.
+     */
+    private CompletableFuture<List<ResourceRecord>> getNextNameServer(DNSNode node,
+                                                                      boolean robust,
+                                                                      LookupPath path) {
+        return getNextNameServer(node.getHostName(), robust, path);
+    }
+
+    /**
+     * Find a nearest name server in cache for a domain name, at the deepest zone cut of the
+     * domain name that the delegation index of the cache knows.
+     *
+     * @param domainName The domain name whose zone is searched.
+     * @param robust     See getNextNameServer(DNSNode, boolean, LookupPath).
+     * @param path       Lookups waiting on the name servers.
+     *
+     * @return A future completed with a list of type A resource records of the nearest name
+     *         servers.
+     */
+    private CompletableFuture<List<ResourceRecord>> getNextNameServer(String domainName,
+                                                                      boolean robust,
+                                                                      LookupPath path) {
+        DNSDelegationIndex.Delegation delegation = cache.findZoneCut(domainName);
+        // If we don't have a name server for any level, return only the root server.
+        if (delegation == null) {
+            List<ResourceRecord> results = new ArrayList<>();
+            results.add(new ResourceRecord("rootServer", RecordType.A, 0, rootServer));
+            return CompletableFuture.completedFuture(results);
+        }
+
+        // We have name servers for this level, now we need their IP addresses. First check
+        // if we have them, and if we do, just return them.
+        final String zone = delegation.getZone();
+        List<ResourceRecord> known = delegation.getAddresses();
+        if (known != null)
+            return CompletableFuture.completedFuture(new ArrayList<>(known));
+        Set<ResourceRecord> records = delegation.getNameServers();
+        List<ResourceRecord> cached = new ArrayList<>();
+        for (ResourceRecord recordNS : records)
+            cached.addAll(cache.peekCachedResults(
+                    new DNSNode(recordNS.getTextResult(), RecordType.A)));
+        if (!cached.isEmpty()) {
+            delegation.setAddresses(cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // Otherwise we need to look the addresses up ourselves. The name servers are looked up
+        // at the same time, and the first one found is enough to carry on.
+        List<DNSNode> addressNodes = new ArrayList<>();
+        for (ResourceRecord recordNS : records)
+            addressNodes.add(new DNSNode(recordNS.getTextResult(), RecordType.A));
+        CompletableFuture<List<ResourceRecord>> lookup = new CompletableFuture<>();
+        if (addressNodes.isEmpty())
+            lookup.complete(new ArrayList<>());
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < MAX_PARALLEL_NS_LOOKUPS; i++)
+            lookUpNameServerAddress(addressNodes, started, failed, lookup, path);
+
+        return lookup.thenCompose(results -> {
+            // If we still don't get the addresses, it must be an exception. But if robust is
+            // true, we keep looking at the upper level to find a name server.
+            if (!results.isEmpty() || !robust)
+                return CompletableFuture.completedFuture(results);
+            int dot = zone.indexOf('.');
+            return getNextNameServer(dot == -1 ? "" : zone.substring(dot + 1), true, path);
+        });
+    }
+
+    /**
+     * Ask the name servers of a zone, fastest first, until one of them answers. The servers
+     * are asked one after another, or staggered if a stagger delay is set.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Type A resource records of the name servers.
+     * @param retCode Value to complete with if no server answers.
+     * @param path    Lookups waiting on the query.
+     *
+     * @return A future completed with the return code of retrieveResultsFromServer for the
+     *         server that answered.
+     */
+    private CompletableFuture<Integer> retrieveResultsFromNameServers(DNSNode node,
+                                                                      List<ResourceRecord> servers,
+                                                                      int retCode,
+                                                                      LookupPath path) {
+        List<ResourceRecord> ranked = infrastructure.rank(servers);
+        if (staggerDelay == 0 || ranked.size() < 2)
+            return retrieveResultsFromServers(node, ranked, 0, retCode, path);
+
+        CompletableFuture<DNSResponse> first = new CompletableFuture<>();
+        sendStaggered(node, ranked, 0, first, new AtomicInteger());
+        return first.thenCompose(response -> response == null
+                ? CompletableFuture.completedFuture(retCode)
+                : handleReceivedResponse(node, response.getServer().getAddress(), response,
+                                         path));
+    }
+
+    /**
+     * Send the question to one name server of a list, and arrange for the next one to be asked
+     * if this one has not answered usefully after the stagger delay, or fails before that.
+     * The first usable response completes the given future, which withdraws the queries that
+     * are still waiting and stops any further retransmission.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Type A resource records of the name servers, in the order to ask them.
+     * @param index   Index of the server to ask.
+     * @param first   Completed with the first usable response, or with null if no server
+     *                gives one.
+     * @param failed  Number of servers that did not give a usable response so far.
+     */
+    private void sendStaggered(DNSNode node, List<ResourceRecord> servers, int index,
+                               CompletableFuture<DNSResponse> first, AtomicInteger failed) {
+        if (first.isDone())
+            return;
+        InetAddress server = servers.get(index).getInetResult();
+
+        AtomicBoolean nextSent = new AtomicBoolean();
+        Runnable sendNext = () -> {
+            if (index + 1 < servers.size() && nextSent.compareAndSet(false, true))
+                sendStaggered(node, servers, index + 1, first, failed);
+        };
+        long delay = Math.min(staggerDelay, Math.max(MIN_STAGGER_MILLIS,
+                (long) infrastructure.getExpectedRTT(server)));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(sendNext);
+
+        sendQuestionGetResponse(node, server, first).thenAccept(response -> {
+            if (response != null && isUsable(response)) {
+                if (!first.complete(response))
+                    response.release();
+                return;
+            }
+            if (response != null)
+                response.release();
+            if (failed.incrementAndGet() == servers.size())
+                first.complete(null);
+            else
+                sendNext.run();
+        });
+    }
+
+    /**
+     * Check whether a response can end a staggered query. A server that fails or refuses to
+     * answer leaves the other servers to answer instead.
+     *
+     * @param response The response.
+     *
+     * @return true unless the server answered SERVFAIL or REFUSED.
+     */
+    private static boolean isUsable(DNSResponse response) {
+        byte rcode = DNSPacketParser.parseHeader(response.getBuffer()).getRCODE();
+        return rcode != DNSHeader.RCODE_SERVER_FAILURE && rcode != DNSHeader.RCODE_REFUSED;
+    }
+
+    /**
+     * Start looking up the address of the next name server of a list. If it has no address,
+     * the one after it is looked up instead, so that at most MAX_PARALLEL_NS_LOOKUPS lookups
+     * are in progress at a time. Lookups that are still in progress when the first address is
+     * found carry on, and add their addresses to the cache.
+     *
+     * @param nodes   Type A nodes of the name servers.
+     * @param started Number of lookups started so far.
+     * @param failed  Number of lookups that found no address so far.
+     * @param first   Completed with the addresses of the first name server found, or with an
+     *                empty list if none of them has an address.
+     * @param path    Lookups waiting on the name servers.
+     */
+    private void lookUpNameServerAddress(List<DNSNode> nodes, AtomicInteger started,
+                                         AtomicInteger failed,
+                                         CompletableFuture<List<ResourceRecord>> first,
+                                         LookupPath path) {
+        if (first.isDone())
+            return;
+        int index = started.getAndIncrement();
+        if (index >= nodes.size())
+            return;
+
+        getResults(nodes.get(index), 0, path).whenComplete((addresses, ex) -> {
+            if (ex == null && !addresses.isEmpty())
+                first.complete(new ArrayList<>(addresses));
+            else if (failed.incrementAndGet() == nodes.size())
+                first.complete(new ArrayList<>());
+            else
+                lookUpNameServerAddress(nodes, started, failed, first, path);
+        });
+    }
+
+    /**
+     * Go over a list of name servers, starting at a given index, until one of them answers.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Type A resource records of the name servers.
+     * @param index   Index of the next server to try.
+     * @param retCode Value to complete with if no server is left to try.
+     * @param path    Lookups waiting on the query.
+     *
+     * @return A future completed with the return code of retrieveResultsFromServer for the
+     *         last server tried.
+     */
+    private CompletableFuture<Integer> retrieveResultsFromServers(DNSNode node,
+                                                                  List<ResourceRecord> servers,
+                                                                  int index, int retCode,
+                                                                  LookupPath path) {
+        if (index >= servers.size())
+            return CompletableFuture.completedFuture(retCode);
+
+        return retrieveResultsFromServer(node, servers.get(index).getInetResult(), path)
+                .thenCompose(code -> code != -1
+                        ? CompletableFuture.completedFuture(code)
+                        : retrieveResultsFromServers(node, servers, index + 1, code, path));
+    }
+
+    /**
+     * Output the trace of a query.
+     *
+     * @param node          DNSNode of query
+     * @param server        The InetAddress of the server.
+     * @param transactionID The transaction ID
+     */
+    private void traceQuery(DNSNode node, InetAddress server, short transactionID) {
+        if (verboseTracing) {
+            System.out.printf("\n\nQuery ID     %d %s  %s --> %s\n",
+                              transactionID&0xff, node.getHostName(),
+                              node.getType(),
+                              server.toString().substring(1));
+        }
+    }
+
+    /**
+     * Send the question packet to the server and receive the response. The query carries an
+     * OPT record, unless EDNS0 is off or the server is known not to support it. If the server
+     * rejects the OPT record, the question is sent again without it. If the response is
+     * truncated, the question is sent again over TCP.
+     *
+     * @param node    DNSNode of query
+     * @param server  The InetAddress of the server.
+     * @param done    When completed, the query is withdrawn and not sent again. May be null.
+     *
+     * @return A future completed with the received response, or with null if the
+     *         server didn't answer.
+     */
+    private CompletableFuture<DNSResponse> sendQuestionGetResponse(DNSNode node,
+                                                                   InetAddress server,
+                                                                   CompletableFuture<?> done) {
+        int payloadSize = noEdnsServers.contains(server) ? 0 : ednsPayloadSize;
+        return sendQuestionGetResponse(node, server, payloadSize, done).thenCompose(response -> {
+            if (response == null)
+                return CompletableFuture.completedFuture(null);
+
+            DNSHeader header = DNSPacketParser.parseHeader(response.getBuffer());
+            if (payloadSize > 0 &&
+                (header.getRCODE() == DNSHeader.RCODE_FORMAT_ERROR ||
+                 header.getRCODE() == DNSHeader.RCODE_NOT_IMPLEMENTED)) {
+                response.release();
+                noEdnsServers.add(server);
+                return sendQuestionGetResponse(node, server, done);
+            }
+            if (header.getTC()) {
+                response.release();
+                return sendQuestionOverTcp(node, server, payloadSize, done);
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    /**
+     * Send the question packet to the server over UDP and receive the response. The query is
+     * encoded once, and a retry only changes its transaction ID. Its buffer goes back to the
+     * encoder once the query engine has let go of it, since a query withdrawn through done
+     * may still be about to be sent.
+     *
+     * @param node        DNSNode of query
+     * @param server      The InetAddress of the server.
+     * @param payloadSize UDP payload size advertised with EDNS0, or 0 for none.
+     * @param done        When completed, the query is withdrawn and not sent again. May be null.
+     *
+     * @return A future completed with the received response, or with null if the
+     *         server didn't answer.
+     */
+    private CompletableFuture<DNSResponse> sendQuestionGetResponse(DNSNode node,
+                                                                   InetAddress server,
+                                                                   int payloadSize,
+                                                                   CompletableFuture<?> done) {
+        ByteBuffer query = encoder.encode(node, payloadSize);
+        AtomicReference<CompletableFuture<Void>> released =
+                new AtomicReference<>(CompletableFuture.completedFuture(null));
+        CompletableFuture<DNSResponse> response =
+                sendQuestionGetResponse(node, server, query, 0, done, released);
+        response.whenComplete((packet, ex) -> released.get()
+                .thenRun(() -> encoder.release(query)));
+        return response;
+    }
+
+    /**
+     * Send the question packet to the server over TCP and receive the response.
+     *
+     * @param node        DNSNode of query
+     * @param server      The InetAddress of the server.
+     * @param payloadSize UDP payload size advertised with EDNS0, or 0 for none.
+     * @param done        When completed, the query is withdrawn. May be null.
+     *
+     * @return A future completed with the received response, or with null if the
+     *         server didn't answer.
+     */
+    private CompletableFuture<DNSResponse> sendQuestionOverTcp(DNSNode node, InetAddress server,
+                                                               int payloadSize,
+                                                               CompletableFuture<?> done) {
+        if (done != null && done.isDone())
+            return CompletableFuture.completedFuture(null);
+        ByteBuffer query = encoder.encode(node, payloadSize);
+        CompletableFuture<DNSResponse> response = engine.sendOverTcp(node, server,
+                                                                     DEFAULT_DNS_PORT, query,
+                                                                     QUERY_TIMEOUT_MILLIS);
+        traceQuery(node, server, DNSQueryEncoder.getTransactionID(query));
+        if (done != null)
+            done.whenComplete((result, ex) -> response.cancel(false));
+
+        return response.handle((packet, ex) -> {
+            encoder.release(query);
+            return ex == null ? packet : null;
+        });
+    }
+
+    /**
+     * Send an encoded question packet to the server and receive the response. The query
+     * engine only hands back a response whose transaction ID and question match the query, so
+     * no filtering is needed here. The query waits for the retransmission timeout of the
+     * server, computed from its measured response times; if no response arrives the question
+     * is sent again, up to MAX_UDP_ATTEMPTS times in all. The round-trip time of the response,
+     * or the timeout, is recorded in the infrastructure cache, so each retry waits longer.
+     * Every attempt has its own transaction ID, so a response is never mistaken for the
+     * response to another attempt.
+     *
+     * @param node     DNSNode of query
+     * @param server   The InetAddress of the server.
+     * @param query    The encoded query.
+     * @param attempt  Number of times the question was already sent.
+     * @param done     When completed, the query is withdrawn and not sent again. May be null.
+     * @param released Set to a future completed once the query engine no longer reads the
+     *                 query of the last attempt.
+     *
+     * @return A future completed with the received response, or with null if the
+     *         server didn't answer.
+     */
+    private CompletableFuture<DNSResponse> sendQuestionGetResponse(
+            DNSNode node, InetAddress server, ByteBuffer query, int attempt,
+            CompletableFuture<?> done, AtomicReference<CompletableFuture<Void>> released) {
+        if (done != null && done.isDone())
+            return CompletableFuture.completedFuture(null);
+        long sent = System.nanoTime();
+        long timeout = infrastructure.getRetransmissionTimeout(server);
+        CompletableFuture<Void> attemptReleased = new CompletableFuture<>();
+        released.set(attemptReleased);
+        CompletableFuture<DNSResponse> response = engine.send(node, server, DEFAULT_DNS_PORT,
+                                                              query, timeout, attemptReleased);
+        traceQuery(node, server, DNSQueryEncoder.getTransactionID(query));
+        if (done != null)
+            done.whenComplete((result, ex) -> response.cancel(false));
+
+        return response.handle((packet, ex) -> {
+            if (ex == null) {
+                infrastructure.recordResponse(server, (System.nanoTime() - sent) / 1e6);
+                return CompletableFuture.completedFuture(packet);
+            }
+            if (ex instanceof SocketTimeoutException ||
+                ex.getCause() instanceof SocketTimeoutException)
+                infrastructure.recordTimeout(server);
+            if (attempt + 1 < MAX_UDP_ATTEMPTS)
+                return sendQuestionGetResponse(node, server, query, attempt + 1, done,
+                                               released);
+            return CompletableFuture.<DNSResponse>completedFuture(null);
+        }).thenCompose(next -> next);
+    }
+
+    /**
+     * Count the labels of a domain name.
+     *
+     * @param domainName The domain name, with or without a trailing dot.
+     *
+     * @return The number of labels, 0 for the root.
+     */
+    private static int countLabels(String domainName) {
+        int end = domainName.endsWith(".") ? domainName.length() - 1 : domainName.length();
+        if (end == 0)
+            return 0;
+        int labels = 1;
+        for (int i = 0; i < end; i++)
+            if (domainName.charAt(i) == '.')
+                labels++;
+        return labels;
+    }
+
+    /**
+     * Remember a negative answer in the cache. Its records are cached as usual, and the
+     * negative TTL is the smaller of the TTL and the MINIMUM field of the SOA record in the
+     * authority section. Without a SOA record the answer is not remembered.
+     *
+     * @param node      Host name and record type used for the query.
+     * @param message   The negative response.
+     * @param nameError true if the server answered that the name does not exist.
+     */
+    private void cacheNegativeResult(DNSNode node, DNSMessageReader message,
+                                     boolean nameError) {
+        if (DNSPacketParser.parseResponse(node, message, cache, verboseTracing) != 0)
+            return;
+
+        long ttl = DNSPacketParser.getNegativeTTL(message);
+        if (ttl < 0)
+            return;
+        // If the answer followed CNAMEs, the negative answer is for the last name.
+        DNSNode negative = new DNSNode(getCanonicalName(node.getHostName()), node.getType());
+        cache.addNegativeResult(negative, nameError, ttl);
+    }
+
+    /**
+     * Follow the CNAMEs cached for a host name.
+     *
+     * @param hostName The host name, possibly an alias.
+     *
+     * @return The last name of the chain of cached CNAMEs starting at hostName.
+     */
+    private String getCanonicalName(String hostName) {
+        for (int level = 0; level <= MAX_INDIRECTION_LEVEL; level++) {
+            Set<ResourceRecord> cnames = cache.peekCachedResults(
+                    new DNSNode(hostName, RecordType.CNAME));
+            if (cnames.isEmpty())
+                break;
+            hostName = cnames.iterator().next().getTextResult();
+        }
+        return hostName;
+    }
+
+    /**
+     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
+     * and the query is repeated with a new server if the provided one is non-authoritative.
+     * Results are stored in the cache.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @param path   Lookups waiting on the query.
+     *
+     * @return A future completed with
+     *         0 if no exception happens,
+     *         -1 if couldn't receive a response, so the caller may change to another server,
+     *         -2 otherwise.
+     */
+    private CompletableFuture<Integer> retrieveResultsFromServer(DNSNode node,
+                                                                 InetAddress server,
+                                                                 LookupPath path) {
+        return sendQuestionGetResponse(node, server, null).thenCompose(
+                response -> handleReceivedResponse(node, server, response, path));
+    }
+
+    /**
+     * Handles a response with handleResponse, then gives its buffer back.
+     *
+     * @param node     Host name and record type used for the query.
+     * @param server   Address of the server that sent the response.
+     * @param response The response, or null if the server didn't answer.
+     * @param path     Lookups waiting on the query.
+     *
+     * @return A future completed with a return code, as for retrieveResultsFromServer.
+     */
+    private CompletableFuture<Integer> handleReceivedResponse(DNSNode node, InetAddress server,
+                                                              DNSResponse response,
+                                                              LookupPath path) {
+        if (response == null)
+            return CompletableFuture.completedFuture(-1);
+
+        // The records are copied into the cache before the response buffer is given back;
+        // nothing after that point reads the response.
+        try {
+            return handleResponse(node, server, response, path);
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Handles a response received by retrieveResultsFromServer: checks its header, adds its
+     * records to the cache, and follows a referral if the server is not authoritative.
+     *
+     * @param node     Host name and record type used for the query.
+     * @param server   Address of the server that sent the response.
+     * @param response The response. It is only read before this method returns.
+     * @param path     Lookups waiting on the query.
+     *
+     * @return A future completed with a return code, as for retrieveResultsFromServer.
+     */
+    private CompletableFuture<Integer> handleResponse(DNSNode node, InetAddress server,
+                                                      DNSResponse response, LookupPath path) {
+        // Now check the header of response. The query engine has already matched its
+        // transaction ID and question to our query. The header is only parsed once, and the
+        // records are parsed from the same reader.
+        DNSMessageReader message = READERS.get();
+        try {
+            message.read(response.getBuffer());
+        } catch (DNSParseException e) {
+            return CompletableFuture.completedFuture(-2);
+        }
+        DNSHeader header = message.getHeader();
+
+        // Check header for exception
+        if (!header.getQR() || header.getTC() ||
+            header.getOPCODE() != DNSHeader.OPCODE_QUERY ||
+            header.getQDCOUNT() != 1)
+            return CompletableFuture.completedFuture(-2);
+
+        // A name error, or an authoritative answer without records, is a negative answer
+        // that is worth remembering.
+        boolean nameError = header.getRCODE() == DNSHeader.RCODE_NAME_ERROR;
+        if (nameError || (header.getRCODE() == 0 && header.getAA() &&
+                          header.getANCOUNT() == 0)) {
+            cacheNegativeResult(node, message, nameError);
+            return CompletableFuture.completedFuture(-2);
+        }
+
+        // Any other error ends the query.
+        if (header.getRCODE() != 0)
+            return CompletableFuture.completedFuture(-2);
+
+        if (verboseTracing) {
+            System.out.printf("Response ID: %d Authoratative = %s\n",
+                              header.getTransactionID() & 0xFF,
+                              String.valueOf(header.getAA()));
+        }
+
+        // Now parse the resource records in the response
+        if (DNSPacketParser.parseResponse(node, message, cache, verboseTracing) != 0)
+            return CompletableFuture.completedFuture(-2);
+
+        // When the server is authoritative, we return and let getResults() decide what to
+        // do next, for example return answers or follow a CNAME.
+        if (header.getAA())
+            return CompletableFuture.completedFuture(-2);
+
+        // If the server is not authoritative, we should get a name server for the next
+        // level, or an exception.
+        if (header.getNSCOUNT() == 0)
+            return CompletableFuture.completedFuture(-2);
+
+        // A dual lookup may be waiting for this referral to start its AAAA lookup.
+        if (!delegationWatchers.isEmpty()) {
+            CompletableFuture<Void> watcher = delegationWatchers.get(node);
+            if (watcher != null && hasZoneServers(node.getHostName()))
+                watcher.complete(null);
+        }
+
+        // A referral must lead closer to the name, or the lookup could go on forever.
+        DNSDelegationIndex.Delegation referral = cache.findZoneCut(node.getHostName());
+        if (referral == null || !path.followReferral(countLabels(referral.getZone())))
+            return CompletableFuture.completedFuture(-2);
+
+        return getNextNameServer(node, false, path).thenCompose(servers -> {
+            // A referral back to the server we just asked would be followed forever.
+            servers = new ArrayList<>(servers);
+            servers.removeIf(ns -> server.equals(ns.getInetResult()));
+            if (servers.isEmpty())
+                return CompletableFuture.completedFuture(-2);
+            // If we couldn't connect to any name server, it's more likely because our
+            // internet is down.
+            return retrieveResultsFromNameServers(node, servers, -2, path)
+                    .thenApply(retCode -> retCode == -1 ? -2 : retCode);
+        });
+    }
+}
\ No newline at end of file
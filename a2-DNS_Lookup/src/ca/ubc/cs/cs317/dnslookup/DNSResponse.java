@@ -0,0 +1,51 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/** A response received by the query engine. The response is held in a buffer leased from the
+ * engine's pool, which should be given back with release once the response has been parsed and
+ * its records copied into the cache. A response that is never released is only a missed chance
+ * to reuse its buffer.
+ */
+public class DNSResponse {
+
+    private final ByteBuffer buffer;
+    private final InetSocketAddress server;
+    private final DNSBufferPool pool;
+    private boolean released;
+
+    /** Creates a response held in a leased buffer.
+     *
+     * @param buffer The message, from position zero to the limit of the buffer.
+     * @param server The server that sent the response.
+     * @param pool   The pool the buffer is given back to, or null if it is not pooled.
+     */
+    public DNSResponse(ByteBuffer buffer, InetSocketAddress server, DNSBufferPool pool) {
+        this.buffer = buffer;
+        this.server = server;
+        this.pool = pool;
+    }
+
+    /** Returns the buffer holding the message. It must not be used after release.
+     *
+     * @return The message, from position zero to the limit of the buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    /** Gives the buffer back to its pool. Only the first call has any effect.
+     */
+    public synchronized void release() {
+        if (released)
+            return;
+        released = true;
+        if (pool != null)
+            pool.release(buffer);
+    }
+}
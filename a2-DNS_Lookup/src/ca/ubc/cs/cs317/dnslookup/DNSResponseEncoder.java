@@ -0,0 +1,295 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/** Encodes the responses of the server mode. A response echoes the question of its request,
+ * followed by the answer records; names are compressed against every name already written in
+ * the message. Records are encoded from what the cache holds, so only the record types in
+ * RecordType are supported; MX and SOA records are rebuilt from their text form as written by
+ * DNSMessageReader.
+ *
+ * A response that does not fit in the size allowed by the client is sent with only its
+ * question and the TC bit set, so that the client asks again over TCP (RFC 2181, 9).
+ *
+ * An encoder reuses one buffer for every response, so it is not thread-safe; each worker
+ * thread should have its own.
+ */
+public class DNSResponseEncoder {
+
+    public static final int MAX_MESSAGE_SIZE = 65535;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int CLASS_IN = 1;
+    private static final int TYPE_OPT = 41;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    // Offset of each name suffix written in the current message, by lowercase name.
+    private final HashMap<String, Integer> names = new HashMap<>();
+    // Offsets of the TTLs of the records written in the current message.
+    private int[] ttlOffsets = new int[16];
+    private int ttlCount;
+    private boolean truncated;
+
+    /** Encodes a response to a query. The buffer returned is overwritten by the next call.
+     *
+     * @param transactionID    Transaction ID of the query.
+     * @param recursionDesired The RD bit of the query, copied to the response.
+     * @param question         The node in the question section of the query.
+     * @param rcode            Response code, one of the RCODE constants of DNSHeader.
+     * @param answers          Records of the answer section, in order.
+     * @param payloadSize      UDP payload size advertised in an OPT record added to the
+     *                         response, or 0 if the query had no OPT record.
+     * @param sizeLimit        Maximum size of the response, in bytes.
+     * @return A buffer holding the response, from position zero to its limit.
+     * @throws IllegalArgumentException If a name in the response cannot be encoded.
+     */
+    public ByteBuffer encode(short transactionID, boolean recursionDesired, DNSNode question,
+                             byte rcode, List<ResourceRecord> answers, int payloadSize,
+                             int sizeLimit) {
+        int limit = Math.min(sizeLimit, MAX_MESSAGE_SIZE) - (payloadSize > 0 ? 11 : 0);
+        names.clear();
+        buffer.clear().limit(limit);
+        ttlCount = 0;
+        truncated = false;
+
+        int answerCount = 0;
+        try {
+            writeHeader(transactionID, recursionDesired, rcode);
+            writeName(question.getHostName());
+            buffer.putShort((short) question.getType().getCode());
+            buffer.putShort((short) CLASS_IN);
+            int questionEnd = buffer.position();
+            try {
+                for (ResourceRecord record : answers)
+                    if (writeRecord(record))
+                        answerCount++;
+            } catch (BufferOverflowException e) {
+                // Only the question is sent back; the client must retry over TCP.
+                buffer.position(questionEnd);
+                answerCount = 0;
+                ttlCount = 0;
+                truncated = true;
+            }
+        } catch (BufferOverflowException e) {
+            // Not even the question fits; send a bare header.
+            buffer.position(HEADER_LENGTH);
+            buffer.putShort(4, (short) 0);
+            truncated = true;
+        }
+
+        buffer.limit(buffer.capacity());
+        if (truncated)
+            buffer.put(2, (byte) (buffer.get(2) | 0x02));
+        buffer.putShort(6, (short) answerCount);
+        if (payloadSize > 0) {
+            buffer.put((byte) 0);                    // Root name
+            buffer.putShort((short) TYPE_OPT);
+            buffer.putShort((short) payloadSize);    // Class: UDP payload size
+            buffer.putInt(0);                        // Extended RCODE, version 0, no flags
+            buffer.putShort((short) 0);              // No options
+            buffer.putShort(10, (short) 1);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Returns the offsets of the TTLs in the last response encoded, so that they can be
+     * updated if the response is sent again later.
+     *
+     * @return A new array with the offsets.
+     */
+    public int[] getTTLOffsets() {
+        return Arrays.copyOf(ttlOffsets, ttlCount);
+    }
+
+    /** Returns true if the last response encoded did not fit, and has the TC bit set.
+     *
+     * @return true if the last response was truncated.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** Encodes a response that only copies the header and question section of a query, for
+     * queries that cannot be answered.
+     *
+     * @param query       The query, from position zero to its limit.
+     * @param questionEnd Offset of the end of the question section of the query, or the end
+     *                    of the header to leave the question out.
+     * @param rcode       Response code, one of the RCODE constants of DNSHeader.
+     * @return A buffer holding the response, from position zero to its limit.
+     */
+    public ByteBuffer encodeError(ByteBuffer query, int questionEnd, byte rcode) {
+        ttlCount = 0;
+        truncated = false;
+        buffer.clear();
+        buffer.put(query.duplicate().position(0).limit(questionEnd));
+        int flags = query.get(2) & 0x79;             // Keep OPCODE and RD
+        buffer.put(2, (byte) (0x80 | flags));
+        buffer.put(3, (byte) (0x80 | rcode));
+        if (questionEnd <= HEADER_LENGTH)
+            buffer.putShort(4, (short) 0);
+        buffer.putShort(6, (short) 0);
+        buffer.putShort(8, (short) 0);
+        buffer.putShort(10, (short) 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeHeader(short transactionID, boolean recursionDesired, byte rcode) {
+        buffer.putShort(transactionID);
+        // QR, standard query, RD copied from the query
+        buffer.put((byte) (0x80 | (recursionDesired ? 0x01 : 0)));
+        // RA, and the response code
+        buffer.put((byte) (0x80 | (rcode & 0x0F)));
+        buffer.putShort((short) 1);  // QDCOUNT
+        buffer.putShort((short) 0);  // ANCOUNT, set once the answers are written
+        buffer.putShort((short) 0);  // NSCOUNT
+        buffer.putShort((short) 0);  // ARCOUNT
+    }
+
+    /** Writes a resource record. A record whose type is not supported, or whose text form
+     * cannot be parsed, is left out.
+     *
+     * @param record The record.
+     * @return true if the record was written, false if it was left out.
+     * @throws BufferOverflowException If the record does not fit.
+     */
+    private boolean writeRecord(ResourceRecord record) {
+        RecordType type = record.getType();
+        InetAddress address = null;
+        String[] dataNames;
+        long[] dataNumbers = {};
+
+        switch (type) {
+            case A:
+            case AAAA:
+                address = record.getInetResult();
+                if (type == RecordType.A ? !(address instanceof Inet4Address)
+                                         : !(address instanceof Inet6Address))
+                    return false;
+                dataNames = new String[0];
+                break;
+            case CNAME:
+            case NS:
+                dataNames = new String[] { record.getTextResult() };
+                break;
+            case MX:
+                // Preference: N; Mail Exchanger: X
+                String[] mxFields = record.getTextResult().split("; ");
+                try {
+                    if (mxFields.length != 2)
+                        return false;
+                    dataNumbers = new long[] {
+                            Long.parseLong(field(mxFields[0], "Preference: ")) };
+                    dataNames = new String[] { field(mxFields[1], "Mail Exchanger: ") };
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                break;
+            case SOA:
+                // MNAME: ..; RNAME: ..; SERIAL: ..; REFRESH: ..; RETRY: ..; EXPIRE: ..; MINIMUM: ..
+                String[] soaFields = record.getTextResult().split("; ");
+                try {
+                    if (soaFields.length != 7)
+                        return false;
+                    dataNames = new String[] { field(soaFields[0], "MNAME: "),
+                                               field(soaFields[1], "RNAME: ") };
+                    String[] labels = { "SERIAL: ", "REFRESH: ", "RETRY: ", "EXPIRE: ",
+                                        "MINIMUM: " };
+                    dataNumbers = new long[labels.length];
+                    for (int i = 0; i < labels.length; i++)
+                        dataNumbers[i] = Long.parseLong(field(soaFields[i + 2], labels[i]));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                break;
+            default:
+                return false;
+        }
+
+        writeName(record.getHostName());
+        buffer.putShort((short) type.getCode());
+        buffer.putShort((short) CLASS_IN);
+        // The TTL is the time left before the record expires in the cache.
+        if (ttlCount == ttlOffsets.length)
+            ttlOffsets = Arrays.copyOf(ttlOffsets, ttlCount * 2);
+        ttlOffsets[ttlCount++] = buffer.position();
+        buffer.putInt((int) Math.max(0, Math.min(record.getTTL(), Integer.MAX_VALUE)));
+        buffer.putShort((short) 0);  // RDLENGTH, set once the data is written
+        int dataStart = buffer.position();
+
+        if (address != null)
+            buffer.put(address.getAddress());
+        else if (type == RecordType.MX)
+            buffer.putShort((short) dataNumbers[0]);
+        for (String name : dataNames)
+            writeName(name);
+        if (type == RecordType.SOA)
+            for (long number : dataNumbers)
+                buffer.putInt((int) number);
+
+        buffer.putShort(dataStart - 2, (short) (buffer.position() - dataStart));
+        return true;
+    }
+
+    /** Returns the value of a field of the text form of a record.
+     *
+     * @param field The field, a label followed by the value.
+     * @param label The label the field must start with.
+     * @return The value.
+     * @throws IllegalArgumentException If the field does not start with the label.
+     */
+    private static String field(String field, String label) {
+        if (!field.startsWith(label))
+            throw new IllegalArgumentException("Missing " + label);
+        return field.substring(label.length());
+    }
+
+    /** Writes a name, replacing its longest suffix already in the message with a pointer to
+     * it, and remembers where each new suffix was written.
+     *
+     * @param hostName The name, with or without a trailing dot.
+     * @throws IllegalArgumentException If the name has an empty or overlong label.
+     * @throws BufferOverflowException  If the name does not fit.
+     */
+    private void writeName(String hostName) {
+        int length = hostName.length();
+        if (length > 0 && hostName.charAt(length - 1) == '.')
+            length--;
+        String suffix = hostName.substring(0, length).toLowerCase(Locale.ROOT);
+
+        int labelStart = 0;
+        while (labelStart < length) {
+            Integer pointer = names.get(suffix.substring(labelStart));
+            if (pointer != null) {
+                buffer.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET)
+                names.put(suffix.substring(labelStart), buffer.position());
+
+            int labelEnd = hostName.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > length)
+                labelEnd = length;
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Invalid host name: " + hostName);
+            buffer.put((byte) labelLength);
+            for (int i = labelStart; i < labelEnd; i++)
+                buffer.put((byte) hostName.charAt(i));
+            labelStart = labelEnd + 1;
+        }
+        buffer.put((byte) 0);
+    }
+}
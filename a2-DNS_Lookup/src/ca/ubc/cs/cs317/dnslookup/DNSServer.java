@@ -0,0 +1,545 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Answers DNS queries from other processes, so that they can share the cache of the resolver.
+ * The server listens on a UDP port and on the TCP port with the same number, and answers
+ * recursive queries for one question of a type in RecordType with the results of the resolver,
+ * preceded by the CNAME records that lead to them.
+ *
+ * UDP queries are read by a number of event loops, one per core by default, and the answer to
+ * a query whose response is in the packet cache is sent right away by the loop that read it.
+ * Where the JDK supports SO_REUSEPORT, each loop has its own socket bound to the port, and the
+ * kernel spreads the datagrams between them; otherwise the loops take turns receiving from a
+ * single shared socket. Each loop has its own buffers, and all of them share the caches.
+ *
+ * Other requests are parsed and resolved on a pool of worker threads, one per core, and each
+ * is answered by the thread that completes its lookup. When the workers cannot keep up, a new
+ * request is refused as it comes in, and answered with SERVFAIL right away; a request that
+ * was accepted is always answered. A name the cache
+ * knows does not exist is answered with NXDOMAIN, a type it knows the name has no records of
+ * with an empty answer, and a lookup that finds nothing else with SERVFAIL.
+ *
+ * UDP responses are limited to 512 bytes, or to the payload size a client advertises in an
+ * EDNS0 OPT record, up to MAX_UDP_PAYLOAD_SIZE. TCP connections may carry any number of
+ * queries (RFC 7766); responses are written as soon as they are ready, in any order, and a
+ * connection is closed once it has been idle for IDLE_TIMEOUT_MILLIS.
+ */
+public class DNSServer implements Closeable {
+
+    public static final int MAX_UDP_PAYLOAD_SIZE = 1232;
+
+    private static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    private static final int MAX_REQUEST_SIZE = 4096;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final int MAX_QUEUED_REQUESTS = 1000;
+    private static final int MAX_TCP_CONNECTIONS = 100;
+    private static final int IDLE_TIMEOUT_MILLIS = 10000;
+
+    private static final ThreadLocal<DNSMessageReader> READERS =
+            ThreadLocal.withInitial(DNSMessageReader::new);
+    private static final ThreadLocal<DNSResponseEncoder> ENCODERS =
+            ThreadLocal.withInitial(DNSResponseEncoder::new);
+    // Responses copied from the packet cache by the threads that read TCP connections.
+    private static final ThreadLocal<ByteBuffer> CACHED_RESPONSES =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(
+                    DNSResponseEncoder.MAX_MESSAGE_SIZE));
+
+    private final DNSResolver resolver;
+    private final DNSCache cache;
+    private final DNSPacketCache packetCache = new DNSPacketCache();
+    private final List<DatagramChannel> udpChannels = new ArrayList<>();
+    private final ServerSocket tcpSocket;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(
+            daemonThreads("dns-server-tcp"));
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong refusedRequests = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /** Sends a response to the client that asked, over the transport of its query.
+     */
+    private interface Responder {
+        void send(ByteBuffer response) throws IOException;
+    }
+
+    /** Starts a server on a port, on every local address, with one UDP event loop per core.
+     *
+     * @param resolver Resolver used to answer queries, whose cache is shared with its other
+     *                 callers.
+     * @param port     UDP and TCP port to listen on.
+     * @throws IOException If a socket could not be bound to the port.
+     */
+    public DNSServer(DNSResolver resolver, int port) throws IOException {
+        this(resolver, port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Starts a server on a port, on every local address.
+     *
+     * @param resolver  Resolver used to answer queries, whose cache is shared with its other
+     *                  callers.
+     * @param port      UDP and TCP port to listen on.
+     * @param udpLoops  Number of event loops reading UDP queries.
+     * @throws IOException If a socket could not be bound to the port.
+     */
+    public DNSServer(DNSResolver resolver, int port, int udpLoops) throws IOException {
+        if (udpLoops < 1)
+            throw new IllegalArgumentException("At least one UDP event loop is needed");
+        this.resolver = resolver;
+        this.cache = resolver.getCache();
+
+        try {
+            openUdpChannels(port, udpLoops);
+            tcpSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            closeUdpChannels();
+            throw e;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS),
+                                         daemonThreads("dns-server"),
+                                         new ThreadPoolExecutor.AbortPolicy());
+
+        for (int i = 0; i < udpLoops; i++) {
+            DatagramChannel channel = udpChannels.get(i % udpChannels.size());
+            daemonThreads("dns-server-udp-" + i).newThread(new UdpLoop(channel)).start();
+        }
+        daemonThreads("dns-server-accept").newThread(this::acceptConnections).start();
+    }
+
+    /** Opens one UDP socket per event loop, all bound to the port with SO_REUSEPORT. If the
+     * option is not supported, or the sockets cannot share the port, a single socket is opened
+     * instead, and the loops share it.
+     *
+     * @param port  UDP port to listen on.
+     * @param loops Number of event loops.
+     * @throws IOException If no socket could be bound to the port.
+     */
+    private void openUdpChannels(int port, int loops) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        DatagramChannel first = DatagramChannel.open();
+        udpChannels.add(first);
+        boolean reusePort = loops > 1 &&
+                first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort)
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        first.bind(address);
+        if (!reusePort)
+            return;
+
+        // The port may be 0; the other sockets must bind to the one the first was given.
+        address = new InetSocketAddress(((InetSocketAddress) first.getLocalAddress()).getPort());
+        try {
+            for (int i = 1; i < loops; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                udpChannels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(address);
+            }
+        } catch (IOException e) {
+            while (udpChannels.size() > 1)
+                closeQuietly(udpChannels.remove(udpChannels.size() - 1));
+        }
+    }
+
+    private void closeUdpChannels() {
+        for (DatagramChannel channel : udpChannels)
+            closeQuietly(channel);
+    }
+
+    /** Returns the number of UDP sockets bound to the port, which is the number of event
+     * loops if SO_REUSEPORT is used, and one otherwise.
+     *
+     * @return The number of UDP sockets.
+     */
+    public int getUdpSocketCount() {
+        return udpChannels.size();
+    }
+
+    /** Returns the port the server listens on.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return tcpSocket.getLocalPort();
+    }
+
+    /** Returns the number of requests refused because the workers could not keep up.
+     *
+     * @return The number of refused requests.
+     */
+    public long getRefusedRequestCount() {
+        return refusedRequests.get();
+    }
+
+    /** Stops the server. Queries that are being resolved are not answered.
+     */
+    @Override
+    public void close() {
+        running = false;
+        closeUdpChannels();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket we are discarding.
+        }
+        for (Socket connection : connections)
+            closeQuietly(connection);
+        workers.shutdownNow();
+        connectionThreads.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void closeQuietly(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket we are discarding.
+        }
+    }
+
+    /** Returns the cache of encoded responses.
+     *
+     * @return The packet cache.
+     */
+    public DNSPacketCache getPacketCache() {
+        return packetCache;
+    }
+
+    /** An event loop that reads datagrams from a socket until the server is closed. Queries
+     * whose response is in the packet cache are answered right away, into a buffer of the
+     * loop; the others are copied and handed to the workers.
+     */
+    private class UdpLoop implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer received = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private final ByteBuffer response = ByteBuffer.allocate(
+                DNSResponseEncoder.MAX_MESSAGE_SIZE);
+
+        UdpLoop(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                SocketAddress client;
+                received.clear();
+                try {
+                    client = channel.receive(received);
+                    received.flip();
+                    if (answerFromPacketCache(received, false, response)) {
+                        channel.send(response, client);
+                        continue;
+                    }
+                } catch (AsynchronousCloseException e) {
+                    return;
+                } catch (IOException e) {
+                    if (running)
+                        System.err.println("Could not receive a query (" + e.getMessage() + ").");
+                    continue;
+                }
+                ByteBuffer request = ByteBuffer.allocate(received.remaining()).put(received)
+                                               .flip();
+                submit(request, false, answer -> channel.send(answer, client));
+            }
+        }
+    }
+
+    /** Accepts TCP connections until the server is closed. Each connection is read by its own
+     * thread, which hands the queries to the workers.
+     */
+    private void acceptConnections() {
+        while (running) {
+            Socket connection;
+            try {
+                connection = tcpSocket.accept();
+            } catch (IOException e) {
+                if (running)
+                    System.err.println("Could not accept a connection (" + e.getMessage() + ").");
+                continue;
+            }
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                closeQuietly(connection);
+                continue;
+            }
+            connections.add(connection);
+            try {
+                connectionThreads.execute(() -> readConnection(connection));
+            } catch (RejectedExecutionException e) {
+                connections.remove(connection);
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /** Reads length-prefixed queries from a connection until the client closes it, it fails,
+     * or it has been idle for too long.
+     *
+     * @param connection The connection.
+     */
+    private void readConnection(Socket connection) {
+        try {
+            connection.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream()));
+            Responder responder = response -> {
+                synchronized (out) {
+                    out.writeShort(response.remaining());
+                    out.write(response.array(), response.arrayOffset() + response.position(),
+                              response.remaining());
+                    out.flush();
+                }
+            };
+
+            while (running) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException | SocketTimeoutException e) {
+                    return;
+                }
+                byte[] request = new byte[length];
+                in.readFully(request);
+                ByteBuffer cached = CACHED_RESPONSES.get();
+                if (answerFromPacketCache(ByteBuffer.wrap(request), true, cached))
+                    responder.send(cached);
+                else
+                    submit(ByteBuffer.wrap(request), true, responder);
+            }
+        } catch (IOException e) {
+            // The client went away; there is nobody left to answer.
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    /** Hands a request to the workers. If they cannot take it, the request is refused: it is
+     * counted, and answered with SERVFAIL by the calling thread, so the client does not wait
+     * for an answer that will never come.
+     *
+     * @param request   The query, from position zero to its limit.
+     * @param tcp       true if the query was received over TCP.
+     * @param responder Where the response is sent.
+     */
+    private void submit(ByteBuffer request, boolean tcp, Responder responder) {
+        try {
+            workers.execute(() -> handleRequest(request, tcp, responder));
+        } catch (RejectedExecutionException e) {
+            refusedRequests.incrementAndGet();
+            if (!running || request.limit() < 12 || (request.get(2) & 0x80) != 0)
+                return;
+            int questionEnd = 12;
+            try {
+                questionEnd = READERS.get().read(request).getQuestionEnd();
+            } catch (DNSParseException ex) {
+                // Answer without the question.
+            }
+            respond(responder, ENCODERS.get().encodeError(request, questionEnd,
+                                                          DNSHeader.RCODE_SERVER_FAILURE));
+        }
+    }
+
+    /** Copies the response to a query from the packet cache, if it is there. Only standard
+     * queries with one question are looked up; anything else is left to handleRequest.
+     *
+     * @param request  The query, from position zero to its limit.
+     * @param tcp      true if the query was received over TCP.
+     * @param response Buffer the response is written to.
+     * @return true if the response was written, false if it must be built by handleRequest.
+     */
+    private boolean answerFromPacketCache(ByteBuffer request, boolean tcp, ByteBuffer response) {
+        // QR and OPCODE must be zero, and QDCOUNT one.
+        if (request.limit() < 12 || (request.get(2) & 0xF8) != 0 || request.getShort(4) != 1)
+            return false;
+        DNSMessageReader reader = READERS.get();
+        try {
+            reader.read(request);
+            int payloadSize = getPayloadSize(reader);
+            return packetCache.answer(request, reader.getQuestionEnd(), payloadSize > 0,
+                                      getSizeLimit(tcp, payloadSize), response);
+        } catch (DNSParseException e) {
+            return false;
+        }
+    }
+
+    /** Returns the UDP payload size advertised in the OPT record of a query.
+     *
+     * @param reader Reader over the query.
+     * @return The payload size, at least 512, or 0 if the query has no OPT record.
+     * @throws DNSParseException If a record of the query is malformed.
+     */
+    private static int getPayloadSize(DNSMessageReader reader) throws DNSParseException {
+        int payloadSize = 0;
+        while (reader.nextRecord())
+            if (reader.getRecordType() == DNSMessageReader.TYPE_OPT)
+                payloadSize = Math.max(reader.getRecordClass(), MIN_UDP_PAYLOAD_SIZE);
+        return payloadSize;
+    }
+
+    /** Returns the largest response that can be sent to a client.
+     *
+     * @param tcp         true if the query was received over TCP.
+     * @param payloadSize The payload size advertised by the client, or 0 if none.
+     * @return The maximum size of the response, in bytes.
+     */
+    private static int getSizeLimit(boolean tcp, int payloadSize) {
+        if (tcp)
+            return DNSResponseEncoder.MAX_MESSAGE_SIZE;
+        return payloadSize > 0 ? Math.min(payloadSize, MAX_UDP_PAYLOAD_SIZE)
+                               : MIN_UDP_PAYLOAD_SIZE;
+    }
+
+    /** Parses a query and starts resolving it. Queries that cannot be answered are responded
+     * to right away with an error, and malformed messages that are not queries are dropped.
+     *
+     * @param request   The query, from position zero to its limit.
+     * @param tcp       true if the query was received over TCP.
+     * @param responder Where the response is sent.
+     */
+    private void handleRequest(ByteBuffer request, boolean tcp, Responder responder) {
+        if (request.limit() < 12 || (request.get(2) & 0x80) != 0)
+            return;  // Too short to answer, or a response
+        DNSHeader header = DNSPacketParser.parseHeader(request);
+
+        DNSMessageReader reader = READERS.get();
+        try {
+            reader.read(request);
+        } catch (DNSParseException e) {
+            respond(responder, ENCODERS.get().encodeError(request, 12,
+                                                          DNSHeader.RCODE_FORMAT_ERROR));
+            return;
+        }
+
+        int questionEnd = reader.getQuestionEnd();
+        if (header.getOPCODE() != DNSHeader.OPCODE_QUERY) {
+            respond(responder, ENCODERS.get().encodeError(request, questionEnd,
+                                                          DNSHeader.RCODE_NOT_IMPLEMENTED));
+            return;
+        }
+        if (header.getQDCOUNT() != 1) {
+            respond(responder, ENCODERS.get().encodeError(request, questionEnd,
+                                                          DNSHeader.RCODE_FORMAT_ERROR));
+            return;
+        }
+
+        DNSNode question;
+        int payloadSize = 0;
+        try {
+            question = reader.getQuestion();
+            // Only class IN, and the record types the resolver knows, can be answered.
+            if (question.getType() == RecordType.OTHER || !reader.questionMatches(question)) {
+                respond(responder, ENCODERS.get().encodeError(request, questionEnd,
+                                                              DNSHeader.RCODE_NOT_IMPLEMENTED));
+                return;
+            }
+            payloadSize = getPayloadSize(reader);
+        } catch (DNSParseException e) {
+            respond(responder, ENCODERS.get().encodeError(request, questionEnd,
+                                                          DNSHeader.RCODE_FORMAT_ERROR));
+            return;
+        }
+
+        short transactionID = header.getTransactionID();
+        boolean recursionDesired = header.getRD();
+        int sizeLimit = getSizeLimit(tcp, payloadSize);
+        boolean edns = payloadSize > 0;
+        int responsePayloadSize = edns ? MAX_UDP_PAYLOAD_SIZE : 0;
+
+        // The response is sent by the thread that completes the lookup, so that a lookup that
+        // was accepted is never dropped by a busy pool.
+        resolver.resolve(question).whenComplete((results, ex) -> {
+            List<ResourceRecord> answers = new ArrayList<>();
+            byte rcode = answer(question, ex == null ? results : Collections.emptySet(),
+                                answers);
+            DNSResponseEncoder encoder = ENCODERS.get();
+            ByteBuffer response;
+            try {
+                response = encoder.encode(transactionID, recursionDesired, question, rcode,
+                                          answers, responsePayloadSize, sizeLimit);
+            } catch (IllegalArgumentException e) {
+                response = encoder.encode(transactionID, recursionDesired, question,
+                                          DNSHeader.RCODE_SERVER_FAILURE,
+                                          Collections.emptyList(), responsePayloadSize,
+                                          sizeLimit);
+                rcode = DNSHeader.RCODE_SERVER_FAILURE;
+            }
+
+            // Complete answers are kept encoded until their first record expires. An answer
+            // whose CNAMEs lead to a name without records of the type is negative, and is
+            // not kept, or it would be replayed for as long as the CNAMEs live.
+            if (rcode == DNSHeader.RCODE__NO_ERROR && ex == null && !results.isEmpty() &&
+                !encoder.isTruncated()) {
+                long expirationTime = Long.MAX_VALUE;
+                for (ResourceRecord record : answers)
+                    expirationTime = Math.min(expirationTime, record.getExpirationTime());
+                packetCache.put(request, questionEnd, edns, response,
+                                encoder.getTTLOffsets(), expirationTime);
+            }
+            respond(responder, response);
+        });
+    }
+
+    /** Collects the answer to a question: the CNAME records from the question to the canonical
+     * name, followed by the results of the lookup.
+     *
+     * @param question The question.
+     * @param results  The results of the lookup.
+     * @param answers  Where the records of the answer section are added.
+     * @return The response code.
+     */
+    private byte answer(DNSNode question, Set<ResourceRecord> results,
+                        List<ResourceRecord> answers) {
+        String hostName = question.getHostName();
+        if (question.getType() != RecordType.CNAME) {
+            for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+                Set<ResourceRecord> cnames = cache.peekCachedResults(
+                        new DNSNode(hostName, RecordType.CNAME));
+                if (cnames.isEmpty())
+                    break;
+                ResourceRecord cname = cnames.iterator().next();
+                answers.add(cname);
+                hostName = cname.getTextResult();
+            }
+        }
+
+        if (!results.isEmpty()) {
+            answers.addAll(results);
+            return DNSHeader.RCODE__NO_ERROR;
+        }
+        if (cache.isNonExistentName(hostName))
+            return DNSHeader.RCODE_NAME_ERROR;
+        if (cache.hasNegativeResult(new DNSNode(hostName, question.getType())))
+            return DNSHeader.RCODE__NO_ERROR;
+        answers.clear();
+        return DNSHeader.RCODE_SERVER_FAILURE;
+    }
+
+    private void respond(Responder responder, ByteBuffer response) {
+        try {
+            responder.send(response);
+        } catch (IOException e) {
+            // The client cannot be reached; it will ask again if it still cares.
+        }
+    }
+}
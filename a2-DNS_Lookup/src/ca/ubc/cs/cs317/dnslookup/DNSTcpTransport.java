@@ -0,0 +1,348 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Sends DNS queries over TCP (RFC 7766), for responses that were truncated because they did not
+ * fit in a UDP datagram. Each message is preceded by its length in two bytes.
+ *
+ * Connections are pooled, one per server, and kept open while they are in use. Queries are
+ * pipelined: any number of them can be written on a connection without waiting for earlier
+ * responses, and responses are matched to queries by transaction ID, in whatever order the
+ * server sends them. Each connection has a daemon thread that reads its responses, and closes
+ * the connection once it has been idle for IDLE_TIMEOUT_MILLIS. A query that was sent on a
+ * connection the server closes before answering is sent once more on a new connection, since
+ * servers are free to close connections they consider idle.
+ */
+public class DNSTcpTransport implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int IDLE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_PIPELINED = 1000;
+
+    private final Executor completionExecutor;
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections =
+            new ConcurrentHashMap<>();
+    private final ExecutorService readers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "dns-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean running = true;
+
+    /** A query that has been handed to the transport and has not been answered yet.
+     */
+    private static class Exchange {
+        final DNSNode node;
+        final InetSocketAddress server;
+        final byte[] query;
+        final CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        // Guarded by the connection the query was sent on.
+        Connection connection;
+        int transactionID;
+        boolean retried;
+
+        Exchange(DNSNode node, InetSocketAddress server, byte[] query) {
+            this.node = node;
+            this.server = server;
+            this.query = query;
+        }
+    }
+
+    /** Creates a new transport with no open connections.
+     *
+     * @param completionExecutor Executor used to complete the future of each query.
+     */
+    public DNSTcpTransport(Executor completionExecutor) {
+        this.completionExecutor = completionExecutor;
+    }
+
+    /** Sends a query to a server over TCP, on the pooled connection to the server if there is
+     * one. A transaction ID that is not used by any other query on the connection is written
+     * into the first two bytes of the query before this method returns. The returned future is
+     * completed with the response, or completed exceptionally if the connection fails or the
+     * server does not answer in time.
+     *
+     * @param node          Host name and record type in the question section of the query.
+     * @param server        Address of the server the query is sent to.
+     * @param port          TCP port of the server.
+     * @param query         Complete query packet, from the start of the buffer to its limit.
+     *                      Its transaction ID is overwritten.
+     * @param timeoutMillis Time to wait for a response, in milliseconds.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<DNSResponse> send(DNSNode node, InetAddress server, int port,
+                                               ByteBuffer query, long timeoutMillis) {
+        byte[] message = new byte[query.limit()];
+        query.get(0, message);
+        Exchange exchange = new Exchange(node, new InetSocketAddress(server, port), message);
+        exchange.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((response, ex) -> {
+                    Connection connection;
+                    synchronized (exchange) {
+                        connection = exchange.connection;
+                    }
+                    if (connection != null)
+                        connection.remove(exchange);
+                });
+
+        submit(exchange);
+        synchronized (exchange) {
+            DNSQueryEncoder.setTransactionID(query, exchange.transactionID);
+        }
+        return exchange.future;
+    }
+
+    /** Returns the number of connections that are open or being opened.
+     *
+     * @return The number of pooled connections.
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /** Closes every connection. Queries that have not been answered are completed
+     * exceptionally.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Connection connection : connections.values())
+            connection.close(new IOException("TCP transport is closed"));
+        readers.shutdownNow();
+    }
+
+    /** Sends a query on the pooled connection to its server, opening a new connection if there
+     * is none or the pooled one has just been closed.
+     *
+     * @param exchange The query.
+     */
+    private void submit(Exchange exchange) {
+        while (running) {
+            Connection connection = connections.computeIfAbsent(exchange.server, this::open);
+            if (connection != null && connection.submit(exchange))
+                return;
+            connections.remove(exchange.server, connection);
+        }
+        fail(exchange, new IOException("TCP transport is closed"));
+    }
+
+    /** Starts opening a connection to a server. Queries can be submitted to it right away;
+     * they are written once the connection is established.
+     *
+     * @param server Address and port of the server.
+     * @return The new connection, or null if the transport is closed.
+     */
+    private Connection open(InetSocketAddress server) {
+        Connection connection = new Connection(server);
+        try {
+            readers.execute(connection);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return connection;
+    }
+
+    private void fail(Exchange exchange, IOException e) {
+        completionExecutor.execute(() -> exchange.future.completeExceptionally(e));
+    }
+
+    /** A connection to one server, and the queries sent on it that are waiting for a response.
+     */
+    private class Connection implements Runnable {
+        private final InetSocketAddress server;
+        private final Socket socket = new Socket();
+        private final Map<Integer, Exchange> pending = new HashMap<>();
+        // Queries submitted before the connection was established.
+        private final List<byte[]> unsent = new ArrayList<>();
+        private DataOutputStream out;
+        private boolean closed;
+        private boolean answered;
+
+        Connection(InetSocketAddress server) {
+            this.server = server;
+        }
+
+        /** Assigns a transaction ID to a query and writes it on this connection.
+         *
+         * @param exchange The query.
+         * @return false if the connection is closed, and the query must be sent on another.
+         */
+        synchronized boolean submit(Exchange exchange) {
+            if (closed)
+                return false;
+            if (exchange.future.isDone())
+                return true;
+            if (pending.size() >= MAX_PIPELINED) {
+                fail(exchange, new IOException("Too many queries pipelined to " + server));
+                return true;
+            }
+
+            int transactionID;
+            do {
+                transactionID = ThreadLocalRandom.current().nextInt(0x10000);
+            } while (pending.containsKey(transactionID));
+            exchange.query[0] = (byte) (transactionID >> 8);
+            exchange.query[1] = (byte) transactionID;
+            synchronized (exchange) {
+                exchange.connection = this;
+                exchange.transactionID = transactionID;
+            }
+            pending.put(transactionID, exchange);
+
+            if (out == null) {
+                unsent.add(exchange.query);
+            } else {
+                try {
+                    write(exchange.query);
+                    out.flush();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+            return true;
+        }
+
+        /** Forgets a query that was answered, timed out or cancelled.
+         *
+         * @param exchange The query.
+         */
+        synchronized void remove(Exchange exchange) {
+            pending.remove(exchange.transactionID, exchange);
+        }
+
+        /** Connects to the server, writes the queries submitted meanwhile, then reads responses
+         * until the connection fails or has been idle long enough to be closed.
+         */
+        @Override
+        public void run() {
+            try {
+                socket.connect(server, CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                synchronized (this) {
+                    if (closed)
+                        return;
+                    out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream()));
+                    for (byte[] query : unsent)
+                        write(query);
+                    unsent.clear();
+                    out.flush();
+                }
+
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    int first;
+                    try {
+                        first = in.read();
+                    } catch (SocketTimeoutException e) {
+                        if (closeIfIdle())
+                            return;
+                        continue;
+                    }
+                    if (first < 0)
+                        throw new EOFException("Connection closed by " + server);
+
+                    // Once a message has started, a timeout fails the connection.
+                    byte[] response = new byte[(first << 8) | in.readUnsignedByte()];
+                    in.readFully(response);
+                    dispatch(response);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void write(byte[] query) throws IOException {
+            out.writeShort(query.length);
+            out.write(query);
+        }
+
+        /** Completes the query a response answers. A response that does not match a pending
+         * query, for example one that arrives after its query timed out, is dropped.
+         *
+         * @param response The response.
+         */
+        private void dispatch(byte[] response) {
+            if (response.length < 12)
+                return;
+            int transactionID = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+            Exchange exchange;
+            synchronized (this) {
+                exchange = pending.get(transactionID);
+            }
+            if (exchange == null)
+                return;
+
+            ByteBuffer buffer = ByteBuffer.wrap(response);
+            try {
+                if (!new DNSMessageReader(buffer).questionMatches(exchange.node))
+                    return;
+            } catch (DNSParseException e) {
+                return;
+            }
+
+            synchronized (this) {
+                if (pending.remove(transactionID, exchange))
+                    answered = true;
+                else
+                    return;
+            }
+            DNSResponse result = new DNSResponse(buffer, server, null);
+            completionExecutor.execute(() -> exchange.future.complete(result));
+        }
+
+        /** Closes the connection if no query is waiting on it.
+         *
+         * @return true if the connection was closed.
+         */
+        private synchronized boolean closeIfIdle() {
+            if (!pending.isEmpty())
+                return false;
+            close(null);
+            return true;
+        }
+
+        /** Closes the connection and removes it from the pool. Queries waiting on it are sent
+         * again on a new connection if this connection had already answered a query, since the
+         * server probably closed it for being idle; otherwise they fail.
+         *
+         * @param failure Why the connection is closed, or null if it was idle.
+         */
+        synchronized void close(IOException failure) {
+            if (closed)
+                return;
+            closed = true;
+            connections.remove(server, this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a socket we are discarding.
+            }
+
+            for (Exchange exchange : pending.values()) {
+                boolean retry;
+                synchronized (exchange) {
+                    exchange.connection = null;
+                    retry = answered && !exchange.retried && running;
+                    exchange.retried = true;
+                }
+                if (retry)
+                    completionExecutor.execute(() -> DNSTcpTransport.this.submit(exchange));
+                else
+                    fail(exchange, failure != null ? failure
+                                                   : new IOException("Connection closed"));
+            }
+            pending.clear();
+            unsent.clear();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** A hierarchical timing wheel that runs actions once their expiration time has passed. The
+ * wheel has several levels of 64 slots each. The first level holds actions due within the next
+ * 64 ticks, and each following level covers a range 64 times longer, so scheduling or firing
+ * an action costs the same whether it is due in a second or in a year. When the first level
+ * completes a turn, the current slot of the next level is spread over the levels below it.
+ *
+ * Actions can be scheduled from any thread. They are collected in a lock-free queue and only
+ * placed in the wheel by the thread that calls advance, which is also the thread that runs
+ * them.
+ */
+public class ExpiryWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<Entry>[][] wheel;
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+
+    /** An action and the tick at which it is due.
+     */
+    private static class Entry {
+        final long tick;
+        final Runnable action;
+
+        Entry(long tick, Runnable action) {
+            this.tick = tick;
+            this.action = action;
+        }
+    }
+
+    /** Creates a new wheel.
+     *
+     * @param tickMillis Length of a tick, in milliseconds. Actions run at most one tick late.
+     * @param now        The current time, in milliseconds since the epoch.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpiryWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        this.wheel = new List[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                wheel[level][slot] = new ArrayList<>();
+    }
+
+    /** Schedules an action to be run once a given time has passed. This method may be called
+     * from any thread.
+     *
+     * @param expirationTime The time after which the action runs, in milliseconds since the
+     *                       epoch.
+     * @param action         The action to run.
+     */
+    public void schedule(long expirationTime, Runnable action) {
+        scheduled.add(new Entry((expirationTime + tickMillis - 1) / tickMillis, action));
+    }
+
+    /** Moves the wheel forward to a given time, running every action that is due. This method
+     * must always be called from the same thread.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @return The number of actions that were run.
+     */
+    public int advance(long now) {
+        Entry entry;
+        while ((entry = scheduled.poll()) != null)
+            place(entry, currentTick + 1);
+
+        int fired = 0;
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+
+            // Spread the current slot of each level over the levels below it, starting from
+            // the highest level whose range just started a new turn.
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long mask = (1L << (SLOT_BITS * level)) - 1;
+                if ((currentTick & mask) == 0)
+                    cascade(level, (int) ((currentTick >> (SLOT_BITS * level)) & (SLOTS - 1)));
+            }
+
+            List<Entry> due = wheel[0][(int) (currentTick & (SLOTS - 1))];
+            if (due.isEmpty())
+                continue;
+            wheel[0][(int) (currentTick & (SLOTS - 1))] = new ArrayList<>();
+            for (Entry candidate : due) {
+                if (candidate.tick <= currentTick) {
+                    candidate.action.run();
+                    fired++;
+                } else {
+                    place(candidate, currentTick + 1);
+                }
+            }
+        }
+        return fired;
+    }
+
+    /** Places an entry in the level whose range covers the time left until it is due. Entries
+     * due after the range of the last level are kept in the last level and placed again when
+     * their slot comes up.
+     *
+     * @param entry    The entry to place.
+     * @param earliest The earliest tick whose slot has not been run yet.
+     */
+    private void place(Entry entry, long earliest) {
+        long tick = Math.max(entry.tick, earliest);
+        long delta = tick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (SLOT_BITS * (level + 1))) || level == LEVELS - 1) {
+                int slot = (int) ((tick >> (SLOT_BITS * level)) & (SLOTS - 1));
+                wheel[level][slot].add(entry);
+                return;
+            }
+        }
+    }
+
+    /** Empties a slot of a level and places its entries again. This happens before the first
+     * level slot of the current tick is run, so entries due now are placed in that slot.
+     *
+     * @param level The level of the slot.
+     * @param slot  The index of the slot.
+     */
+    private void cascade(int level, int slot) {
+        List<Entry> entries = wheel[level][slot];
+        if (entries.isEmpty())
+            return;
+        wheel[level][slot] = new ArrayList<>();
+        for (Entry entry : entries)
+            place(entry, currentTick);
+    }
+}
@@ -0,0 +1,113 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A count-min sketch that estimates how often each key has been seen recently. Counters are
+ * four bits wide and packed sixteen to a long. Each key maps to four counters, one in each of
+ * four different longs, and its frequency is the smallest of the four. Once the number of
+ * increments reaches ten times the table size all counters are halved, so keys that were
+ * popular a long time ago gradually lose their weight.
+ *
+ * This class is not thread-safe; callers must synchronize access to it.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAXIMUM_FREQUENCY = 15;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /** Creates a sketch sized for a number of distinct keys.
+     *
+     * @param maximumSize The number of keys the cache holds at most.
+     */
+    public FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /** Resizes the sketch for a new number of keys. The current counts are discarded.
+     *
+     * @param maximumSize The number of keys the cache holds at most.
+     */
+    public void ensureCapacity(long maximumSize) {
+        int length = Integer.highestOneBit((int) Math.max(16, Math.min(maximumSize, 1 << 30)) - 1) << 1;
+        if (table != null && table.length == length)
+            return;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+        size = 0;
+    }
+
+    /** Returns the estimated number of times a key was seen, capped at fifteen.
+     *
+     * @param key The key whose frequency is estimated.
+     * @return The estimated frequency of the key.
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAXIMUM_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records one more occurrence of a key.
+     *
+     * @param key The key that was seen.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    /** Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size = size / 2;
+    }
+
+    /** Returns the index in the table of one of the four counters of a hash.
+     *
+     * @param hash The spread hash of a key.
+     * @param i    Which of the four counters.
+     * @return The index of the long holding the counter.
+     */
+    private int indexOf(int hash, int i) {
+        long value = (hash + SEEDS[i]) * SEEDS[i];
+        value += value >>> 32;
+        return ((int) value) & tableMask;
+    }
+
+    /** Spreads the bits of a hash code, so that keys with similar hash codes use unrelated
+     * counters.
+     *
+     * @param hashCode The hash code of a key.
+     * @return The spread hash.
+     */
+    private static int spread(int hashCode) {
+        int hash = hashCode * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -2,23 +2,26 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * and is represented by an expiration time calculated as a delta from the current time. The
+ * expiration time is kept in milliseconds since the epoch, so checking whether a record is
+ * still valid is a single comparison with the current time.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private long originalTTL;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.expirationTime = System.currentTimeMillis() + (ttl * 1000);
+        this.originalTTL = ttl;
         this.textResult = result;
         this.inetResult = null;
     }
@@ -28,6 +31,35 @@ public class ResourceRecord implements Serializable {
         this.inetResult = result;
     }
 
+    /** Creates a record that expires at a given time, for example when restoring a record
+     * saved by an earlier run.
+     *
+     * @param node           The host name and record type of the record.
+     * @param originalTTL    The TTL the record had when it was obtained, in seconds.
+     * @param expirationTime The time the record expires, in milliseconds since the epoch.
+     * @param textResult     The textual result of the record.
+     * @param inetResult     The address result of the record, or null if it has none.
+     */
+    public ResourceRecord(DNSNode node, long originalTTL, long expirationTime,
+                          String textResult, InetAddress inetResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = originalTTL;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
+    /** Creates a copy of a record with a new TTL, for example to hand out a stale record for a
+     * short time.
+     *
+     * @param record The record to copy.
+     * @param ttl    The TTL of the copy, in seconds.
+     */
+    public ResourceRecord(ResourceRecord record, long ttl) {
+        this(record.getHostName(), record.getType(), ttl, record.getTextResult());
+        this.inetResult = record.getInetResult();
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +80,34 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** The TTL this record had when it was created, as obtained from the DNS server.
+     *
+     * @return The original TTL, in seconds.
+     */
+    public long getOriginalTTL() {
+        return originalTTL;
+    }
+
+    /** Returns true if this record has used up at least a given share of its original TTL. A
+     * cache may use this to refresh popular records shortly before they expire.
+     *
+     * @param now   The current time, in milliseconds since the epoch.
+     * @param share The share of the TTL, between 0 and 1.
+     * @return true if the remaining lifetime is at most (1 - share) of the original TTL.
+     */
+    public boolean isNearExpiration(long now, double share) {
+        return expirationTime - now <= (1 - share) * originalTTL * 1000;
+    }
+
+    /** The time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +117,17 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return isStillValid(System.currentTimeMillis());
+    }
+
+    /** Returns true if this record has not expired yet at a given time. Callers checking many
+     * records at once can read the clock once and pass the same time to each record.
+     *
+     * @param now The current time, in milliseconds since the epoch.
+     * @return true if this record has not expired by the given time, and false otherwise.
+     */
+    public boolean isStillValid(long now) {
+        return expirationTime > now;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,7 +139,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
     }
 
     public String getTextResult() {
@@ -0,0 +1,226 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+
+/** A W-TinyLFU eviction policy. New keys enter a small LRU window that holds about one percent
+ * of the capacity. Keys leaving the window become candidates for the main space, a segmented
+ * LRU split into a probation and a protected segment. When the cache is over capacity, a
+ * candidate is only admitted if it has been seen more often than the least recently used key
+ * in probation, which is evicted in its place; otherwise the candidate itself is evicted. Keys
+ * accessed while in probation move to the protected segment. As a result, a burst of keys that
+ * are only seen once cannot push out keys that are used all the time.
+ *
+ * Capacity is bounded both by number of keys and by total weight. The policy only tracks keys
+ * and weights; the caller removes the keys it returns as evicted. This class is not
+ * thread-safe; callers must synchronize access to it.
+ *
+ * @param <K> The type of the keys.
+ */
+public class TinyLfuPolicy<K> {
+
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.80;
+
+    private final LinkedHashMap<K, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private long maximumEntries;
+    private long maximumWeight;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    /** Creates a new policy.
+     *
+     * @param maximumEntries The maximum number of keys.
+     * @param maximumWeight  The maximum total weight of all keys.
+     */
+    public TinyLfuPolicy(long maximumEntries, long maximumWeight) {
+        this.sketch = new FrequencySketch(maximumEntries);
+        setMaximum(maximumEntries, maximumWeight);
+    }
+
+    /** Changes the capacity of the policy. Keys over the new capacity are evicted the next
+     * time evict is called.
+     *
+     * @param maximumEntries The maximum number of keys.
+     * @param maximumWeight  The maximum total weight of all keys.
+     */
+    public void setMaximum(long maximumEntries, long maximumWeight) {
+        this.maximumEntries = Math.max(1, maximumEntries);
+        this.maximumWeight = Math.max(1, maximumWeight);
+        sketch.ensureCapacity(this.maximumEntries);
+    }
+
+    public long getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /** Returns the number of keys tracked by the policy.
+     *
+     * @return The number of keys.
+     */
+    public long size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    /** Returns the total weight of the keys tracked by the policy.
+     *
+     * @return The total weight.
+     */
+    public long weightedSize() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    /** Returns the estimated number of times a key was used recently, capped at fifteen.
+     *
+     * @param key The key whose frequency is estimated.
+     * @return The estimated frequency of the key.
+     */
+    public int frequency(K key) {
+        return sketch.frequency(key);
+    }
+
+    /** Records a read of a key. A key in probation is promoted to the protected segment.
+     *
+     * @param key The key that was read.
+     */
+    public void recordAccess(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedSegment.get(key) != null)
+            return;
+
+        Long weight = probation.remove(key);
+        if (weight == null)
+            return;
+        probationWeight -= weight;
+        protectedSegment.put(key, weight);
+        protectedWeight += weight;
+
+        // Demote the least recently used protected keys if the segment grew too big.
+        long protectedMaximum = (long) (mainWeight() * PROTECTED_SHARE);
+        Iterator<Map.Entry<K, Long>> lru = protectedSegment.entrySet().iterator();
+        while (protectedWeight > protectedMaximum && protectedSegment.size() > 1) {
+            Map.Entry<K, Long> demoted = lru.next();
+            lru.remove();
+            protectedWeight -= demoted.getValue();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationWeight += demoted.getValue();
+        }
+    }
+
+    /** Records that a key was added or that its weight changed. New keys enter the window,
+     * and count as one use of the key; a change of weight does not, so that a key written many
+     * times at once, such as a node given many records by one response, is not taken for a
+     * popular one.
+     *
+     * @param key    The key that was written.
+     * @param weight The new weight of the key.
+     */
+    public void recordWrite(K key, long weight) {
+        if (!recordWeight(key, weight)) {
+            sketch.increment(key);
+            window.put(key, weight);
+            windowWeight += weight;
+        }
+    }
+
+    /** Records a new weight for a key, without counting it as a use of the key.
+     *
+     * @param key    The key whose weight changed.
+     * @param weight The new weight of the key.
+     * @return true if the key is tracked by the policy, false otherwise.
+     */
+    public boolean recordWeight(K key, long weight) {
+        Long old;
+        if ((old = window.get(key)) != null) {
+            window.put(key, weight);
+            windowWeight += weight - old;
+        } else if ((old = probation.get(key)) != null) {
+            probation.put(key, weight);
+            probationWeight += weight - old;
+        } else if ((old = protectedSegment.get(key)) != null) {
+            protectedSegment.put(key, weight);
+            protectedWeight += weight - old;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /** Records that a key was removed by the caller, for example because it expired.
+     *
+     * @param key The key that was removed.
+     */
+    public void recordRemoval(K key) {
+        Long weight;
+        if ((weight = window.remove(key)) != null)
+            windowWeight -= weight;
+        else if ((weight = probation.remove(key)) != null)
+            probationWeight -= weight;
+        else if ((weight = protectedSegment.remove(key)) != null)
+            protectedWeight -= weight;
+    }
+
+    /** Brings the policy back within its capacity. Keys that overflow the window become
+     * candidates for the main space, and each candidate competes with the least recently used
+     * key in probation until the policy fits.
+     *
+     * @return The keys that were evicted. The caller must remove them from the cache.
+     */
+    public List<K> evict() {
+        List<K> evicted = new ArrayList<>();
+
+        // Move the keys that overflow the window into probation, as candidates.
+        Deque<K> candidates = new ArrayDeque<>();
+        long windowMaximum = Math.max(1, (long) (maximumWeight * WINDOW_SHARE));
+        long windowEntries = Math.max(1, (long) (maximumEntries * WINDOW_SHARE));
+        Iterator<Map.Entry<K, Long>> lru = window.entrySet().iterator();
+        while ((windowWeight > windowMaximum || window.size() > windowEntries) && lru.hasNext()) {
+            Map.Entry<K, Long> entry = lru.next();
+            lru.remove();
+            windowWeight -= entry.getValue();
+            probation.put(entry.getKey(), entry.getValue());
+            probationWeight += entry.getValue();
+            candidates.add(entry.getKey());
+        }
+
+        while (size() > maximumEntries || weightedSize() > maximumWeight) {
+            K victim = firstKey(probation);
+            K candidate = candidates.pollLast();
+            if (victim == null) {
+                // Nothing left in probation, fall back to plain LRU order.
+                victim = firstKey(protectedSegment);
+                if (victim == null)
+                    victim = firstKey(window);
+                if (victim == null)
+                    break;
+            } else if (candidate != null && !candidate.equals(victim) &&
+                       sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                victim = candidate;
+            }
+            candidates.remove(victim);
+            recordRemoval(victim);
+            evicted.add(victim);
+        }
+        return evicted;
+    }
+
+    /** The capacity left for the main space once the window has its share.
+     *
+     * @return The maximum weight of the probation and protected segments together.
+     */
+    private long mainWeight() {
+        return maximumWeight - (long) (maximumWeight * WINDOW_SHARE);
+    }
+
+    private static <K> K firstKey(LinkedHashMap<K, Long> segment) {
+        return segment.isEmpty() ? null : segment.keySet().iterator().next();
+    }
+}
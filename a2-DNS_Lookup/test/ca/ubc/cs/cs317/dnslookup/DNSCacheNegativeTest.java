@@ -0,0 +1,73 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of the negative results of DNSCache. Each test uses its own names, since the cache
+ * is a singleton.
+ */
+public class DNSCacheNegativeTest {
+
+    public static void main(String[] args) throws Exception {
+        run("nameErrorAppliesToEveryType", DNSCacheNegativeTest::nameErrorAppliesToEveryType);
+        run("noDataAppliesToItsTypeOnly", DNSCacheNegativeTest::noDataAppliesToItsTypeOnly);
+        run("namesAreComparedWithoutRegardToCase",
+            DNSCacheNegativeTest::namesAreComparedWithoutRegardToCase);
+        run("zeroTTLIsNotCached", DNSCacheNegativeTest::zeroTTLIsNotCached);
+        run("negativeResultsExpire", DNSCacheNegativeTest::negativeResultsExpire);
+    }
+
+    static void nameErrorAppliesToEveryType() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addNegativeResult(new DNSNode("missing.ubc.ca", RecordType.A), true, 600);
+
+        assertTrue(cache.isNonExistentName("missing.ubc.ca"), "the name does not exist");
+        assertTrue(cache.hasNegativeResult(new DNSNode("missing.ubc.ca", RecordType.A)),
+                   "the type of the query");
+        assertTrue(cache.hasNegativeResult(new DNSNode("missing.ubc.ca", RecordType.MX)),
+                   "any other type");
+        assertFalse(cache.hasNegativeResult(new DNSNode("other.ubc.ca", RecordType.A)),
+                    "another name");
+    }
+
+    static void noDataAppliesToItsTypeOnly() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addNegativeResult(new DNSNode("v4only.ubc.ca", RecordType.AAAA), false, 600);
+
+        assertTrue(cache.hasNegativeResult(new DNSNode("v4only.ubc.ca", RecordType.AAAA)),
+                   "no records of the type");
+        assertFalse(cache.hasNegativeResult(new DNSNode("v4only.ubc.ca", RecordType.A)),
+                    "other types may have records");
+        assertFalse(cache.isNonExistentName("v4only.ubc.ca"), "the name exists");
+    }
+
+    static void namesAreComparedWithoutRegardToCase() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addNegativeResult(new DNSNode("Gone.UBC.ca", RecordType.A), true, 600);
+
+        assertTrue(cache.isNonExistentName("gone.ubc.CA"), "name error");
+        assertTrue(cache.hasNegativeResult(new DNSNode("GONE.ubc.ca", RecordType.AAAA)),
+                   "negative result");
+    }
+
+    static void zeroTTLIsNotCached() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addNegativeResult(new DNSNode("zero.ubc.ca", RecordType.A), true, 0);
+        cache.addNegativeResult(new DNSNode("zero.ubc.ca", RecordType.MX), false, 0);
+
+        assertFalse(cache.isNonExistentName("zero.ubc.ca"), "name error");
+        assertFalse(cache.hasNegativeResult(new DNSNode("zero.ubc.ca", RecordType.MX)),
+                    "no data");
+    }
+
+    static void negativeResultsExpire() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addNegativeResult(new DNSNode("brief.ubc.ca", RecordType.A), true, 1);
+        cache.addNegativeResult(new DNSNode("brief.ubc.ca", RecordType.MX), false, 1);
+        assertTrue(cache.isNonExistentName("brief.ubc.ca"), "cached");
+
+        Thread.sleep(1100);
+        assertFalse(cache.isNonExistentName("brief.ubc.ca"), "name error expired");
+        assertFalse(cache.hasNegativeResult(new DNSNode("brief.ubc.ca", RecordType.MX)),
+                    "no data expired");
+    }
+}
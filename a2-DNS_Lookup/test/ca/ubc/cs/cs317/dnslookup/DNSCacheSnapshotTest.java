@@ -0,0 +1,162 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of DNSCacheSnapshot. Snapshots of the cache are written from the DNSCache singleton;
+ * snapshots with expired records are written by hand, since the cache does not take them.
+ */
+public class DNSCacheSnapshotTest {
+
+    private static final DNSNode ADDRESS = new DNSNode("www.ubc.ca", RecordType.A);
+    private static final DNSNode ZONE = new DNSNode("ubc.ca", RecordType.NS);
+    private static final DNSNode OLD = new DNSNode("old.ubc.ca", RecordType.A);
+    private static final DNSNode SHORT_LIVED = new DNSNode("short.ubc.ca", RecordType.A);
+    private static final DNSNode KEPT = new DNSNode("kept.ubc.ca", RecordType.A);
+
+    private static Path directory;
+
+    public static void main(String[] args) throws Exception {
+        directory = Files.createTempDirectory("dns-snapshot-test");
+        try {
+            run("recordsSurviveARoundTrip", DNSCacheSnapshotTest::recordsSurviveARoundTrip);
+            run("expiredEntriesAreNotIndexed",
+                DNSCacheSnapshotTest::expiredEntriesAreNotIndexed);
+            run("recordsExpiredAfterOpeningAreDropped",
+                DNSCacheSnapshotTest::recordsExpiredAfterOpeningAreDropped);
+            run("untakenEntriesAreCopiedToTheNextSnapshot",
+                DNSCacheSnapshotTest::untakenEntriesAreCopiedToTheNextSnapshot);
+            run("rejectsFileThatIsNotASnapshot",
+                DNSCacheSnapshotTest::rejectsFileThatIsNotASnapshot);
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    static void recordsSurviveARoundTrip() throws Exception {
+        long expiration = System.currentTimeMillis() + 3_600_000;
+        InetAddress address = InetAddress.getByName("142.103.6.5");
+        ResourceRecord a = new ResourceRecord(ADDRESS, 7200, expiration,
+                                              address.getHostAddress(), address);
+        ResourceRecord ns = new ResourceRecord(ZONE, 86400, expiration + 1000,
+                                               "ns1.ubc.ca", null);
+        DNSCache cache = DNSCache.getInstance();
+        cache.addResult(a);
+        cache.addResult(ns);
+
+        Path file = directory.resolve("round-trip.snapshot");
+        assertEquals(2, DNSCacheSnapshot.write(cache, file), "nodes written");
+
+        DNSCacheSnapshot snapshot = DNSCacheSnapshot.open(file);
+        assertEquals(2, snapshot.size(), "entries indexed");
+        assertTrue(snapshot.hasZones(), "the NS entry is a zone");
+
+        List<ResourceRecord> addresses = snapshot.take(ADDRESS);
+        assertEquals(1, addresses.size(), "one A record");
+        ResourceRecord restored = addresses.get(0);
+        assertEquals(ADDRESS, restored.getNode(), "node");
+        assertEquals(expiration, restored.getExpirationTime(), "expiration time");
+        assertEquals(7200L, restored.getOriginalTTL(), "original TTL");
+        assertEquals(address, restored.getInetResult(), "address");
+
+        List<ResourceRecord> servers = snapshot.take(ZONE);
+        assertEquals(1, servers.size(), "one NS record");
+        assertEquals("ns1.ubc.ca", servers.get(0).getTextResult(), "name server");
+        assertEquals(null, servers.get(0).getInetResult(), "a name server is text");
+        assertFalse(snapshot.hasZones(), "the zone was taken");
+
+        assertTrue(snapshot.take(ADDRESS).isEmpty(), "an entry is only taken once");
+        assertEquals(0, snapshot.size(), "no entries left");
+    }
+
+    static void expiredEntriesAreNotIndexed() throws Exception {
+        long now = System.currentTimeMillis();
+        Path file = directory.resolve("expired.snapshot");
+        writeSnapshot(file, now - 1000, now + 3_600_000);
+
+        DNSCacheSnapshot snapshot = DNSCacheSnapshot.open(file);
+        assertEquals(1, snapshot.size(), "only the live entry is indexed");
+        assertTrue(snapshot.take(OLD).isEmpty(), "the expired entry cannot be taken");
+        assertEquals(1, snapshot.take(KEPT).size(), "the live entry can");
+    }
+
+    static void recordsExpiredAfterOpeningAreDropped() throws Exception {
+        long now = System.currentTimeMillis();
+        Path file = directory.resolve("short-lived.snapshot");
+        writeSnapshot(file, now + 200, now + 3_600_000);
+
+        DNSCacheSnapshot snapshot = DNSCacheSnapshot.open(file);
+        assertEquals(2, snapshot.size(), "both entries are live when opened");
+        Thread.sleep(300);
+        assertTrue(snapshot.take(SHORT_LIVED).isEmpty(), "the record expired since");
+    }
+
+    static void untakenEntriesAreCopiedToTheNextSnapshot() throws Exception {
+        long now = System.currentTimeMillis();
+        Path first = directory.resolve("first.snapshot");
+        writeSnapshot(first, now + 3_600_000, now + 3_600_000);
+        DNSCacheSnapshot snapshot = DNSCacheSnapshot.open(first);
+        snapshot.take(SHORT_LIVED);
+
+        Path second = directory.resolve("second.snapshot");
+        DNSCacheSnapshot.write(DNSCache.getInstance(), second, snapshot);
+        DNSCacheSnapshot copy = DNSCacheSnapshot.open(second);
+        assertTrue(copy.take(SHORT_LIVED).isEmpty(), "a taken entry is not copied");
+        List<ResourceRecord> kept = copy.take(KEPT);
+        assertEquals(1, kept.size(), "an untaken entry is copied");
+        assertEquals("10.0.0.1", kept.get(0).getTextResult(), "with its records");
+    }
+
+    static void rejectsFileThatIsNotASnapshot() throws Exception {
+        Path file = directory.resolve("not-a.snapshot");
+        Files.write(file, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> DNSCacheSnapshot.open(file), "wrong magic number");
+
+        Path truncated = directory.resolve("truncated.snapshot");
+        byte[] valid = Files.readAllBytes(directory.resolve("expired.snapshot"));
+        Files.write(truncated, Arrays.copyOf(valid, valid.length - 10));
+        assertThrows(IOException.class, () -> DNSCacheSnapshot.open(truncated),
+                     "a snapshot cut short");
+    }
+
+    /** Writes a snapshot by hand, in the format documented by DNSCacheSnapshot, with an A
+     * record for SHORT_LIVED or OLD, depending on whether it has expired, and one for KEPT.
+     */
+    private static void writeSnapshot(Path file, long firstExpiration, long keptExpiration)
+            throws IOException {
+        DNSNode first = firstExpiration < System.currentTimeMillis() ? OLD : SHORT_LIVED;
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x444E5343);
+            out.writeShort(1);
+            writeEntry(out, first, firstExpiration, new byte[] {10, 0, 0, 2});
+            writeEntry(out, KEPT, keptExpiration, new byte[] {10, 0, 0, 1});
+            out.writeShort(0xFFFF);
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, DNSNode node, long expiration,
+                                   byte[] address) throws IOException {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.UTF_8);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeShort(node.getType().getCode());
+        out.writeShort(1);
+        out.writeLong(expiration);
+        out.writeInt(3600);
+        out.writeByte(1);
+        out.writeShort(address.length);
+        out.write(address);
+    }
+}
@@ -0,0 +1,239 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of DNSMessageReader on messages built byte by byte.
+ */
+public class DNSMessageReaderTest {
+
+    // Offsets of names in the messages built by response(): the question name, and the
+    // "ubc.ca" part of it.
+    private static final int QUESTION_NAME = 12;
+    private static final int UBC_CA = 16;
+
+    public static void main(String[] args) throws Exception {
+        run("readsHeaderAndQuestion", DNSMessageReaderTest::readsHeaderAndQuestion);
+        run("readsRecordsOfEachSection", DNSMessageReaderTest::readsRecordsOfEachSection);
+        run("readsSOAMinimum", DNSMessageReaderTest::readsSOAMinimum);
+        run("replacesZeroTTL", DNSMessageReaderTest::replacesZeroTTL);
+        run("readsFromBufferPosition", DNSMessageReaderTest::readsFromBufferPosition);
+        run("rejectsShortMessage", DNSMessageReaderTest::rejectsShortMessage);
+        run("rejectsCompressionLoop", DNSMessageReaderTest::rejectsCompressionLoop);
+        run("rejectsRecordPastEnd", DNSMessageReaderTest::rejectsRecordPastEnd);
+    }
+
+    static void readsHeaderAndQuestion() throws Exception {
+        DNSMessageReader reader = new DNSMessageReader(response(0, 0, 0).toBuffer());
+
+        DNSHeader header = reader.getHeader();
+        assertEquals((short) 0x1234, header.getTransactionID(), "transaction ID");
+        assertTrue(header.getQR(), "QR");
+        assertTrue(header.getAA(), "AA");
+        assertEquals(DNSHeader.RCODE__NO_ERROR, header.getRCODE(), "RCODE");
+
+        assertTrue(reader.questionMatches(new DNSNode("WWW.ubc.CA", RecordType.A)),
+                   "names are compared without regard to case");
+        assertFalse(reader.questionMatches(new DNSNode("www.ubc.ca", RecordType.AAAA)),
+                    "the type must match");
+        assertFalse(reader.questionMatches(new DNSNode("ww.ubc.ca", RecordType.A)),
+                    "the name must match");
+        assertEquals(new DNSNode("www.ubc.ca", RecordType.A), reader.getQuestion(), "question");
+        assertEquals(12 + 12 + 4, reader.getQuestionEnd(), "question end");
+        assertFalse(reader.nextRecord(), "no records");
+    }
+
+    static void readsRecordsOfEachSection() throws Exception {
+        Message message = response(2, 1, 1);
+        // www.ubc.ca CNAME web.ubc.ca, with both names compressed.
+        message.pointer(QUESTION_NAME).record(RecordType.CNAME.getCode(), 1, 300);
+        message.data(m -> m.label("web").pointer(UBC_CA));
+        int webName = message.size() - 6;
+        // web.ubc.ca A 142.103.6.5
+        message.pointer(webName).record(RecordType.A.getCode(), 1, 60);
+        message.data(m -> m.bytes(142, 103, 6, 5));
+        // ubc.ca NS ns1.ubc.ca
+        message.pointer(UBC_CA).record(RecordType.NS.getCode(), 1, 86400);
+        message.data(m -> m.label("ns1").pointer(UBC_CA));
+        // OPT pseudo-record of the root, advertising a 1232-byte payload.
+        message.bytes(0).record(DNSMessageReader.TYPE_OPT, 1232, 0);
+        message.data(m -> { });
+
+        DNSMessageReader reader = new DNSMessageReader(message.toBuffer());
+        assertTrue(reader.nextRecord(), "first answer");
+        assertEquals(DNSMessageReader.SECTION_ANSWER, reader.getSection(), "section");
+        ResourceRecord cname = reader.toResourceRecord(1);
+        assertEquals(new DNSNode("www.ubc.ca", RecordType.CNAME), cname.getNode(), "CNAME node");
+        assertEquals("web.ubc.ca", cname.getTextResult(), "CNAME target");
+        assertEquals(300L, cname.getOriginalTTL(), "CNAME TTL");
+
+        assertTrue(reader.nextRecord(), "second answer");
+        assertEquals(DNSMessageReader.SECTION_ANSWER, reader.getSection(), "section");
+        ResourceRecord address = reader.toResourceRecord(1);
+        assertEquals(new DNSNode("web.ubc.ca", RecordType.A), address.getNode(), "A node");
+        assertEquals("142.103.6.5", address.getTextResult(), "address");
+
+        assertTrue(reader.nextRecord(), "authority");
+        assertEquals(DNSMessageReader.SECTION_AUTHORITY, reader.getSection(), "section");
+        assertEquals("ns1.ubc.ca", reader.toResourceRecord(1).getTextResult(), "name server");
+
+        assertTrue(reader.nextRecord(), "additional");
+        assertEquals(DNSMessageReader.SECTION_ADDITIONAL, reader.getSection(), "section");
+        assertTrue(reader.isOwnedByRoot(), "OPT is owned by the root");
+        assertFalse(reader.isInternetRecord(), "OPT is not cached");
+        assertThrows(DNSParseException.class, () -> reader.toResourceRecord(1),
+                     "a record of the root cannot be decoded");
+
+        assertFalse(reader.nextRecord(), "no more records");
+        reader.rewind();
+        assertTrue(reader.nextRecord(), "records can be read again");
+        assertEquals("www.ubc.ca", reader.getRecordName(), "from the first");
+    }
+
+    static void readsSOAMinimum() throws Exception {
+        Message message = response(0, 1, 0);
+        message.pointer(UBC_CA).record(RecordType.SOA.getCode(), 1, 3600);
+        message.data(m -> {
+            m.label("ns1").pointer(UBC_CA).label("hostmaster").pointer(UBC_CA);
+            m.ints(2024010101, 7200, 900, 1209600, 600);
+        });
+
+        DNSMessageReader reader = new DNSMessageReader(message.toBuffer());
+        assertTrue(reader.nextRecord(), "authority");
+        assertEquals(600L, reader.getSOAMinimum(), "MINIMUM");
+        assertTrue(reader.toResourceRecord(1).getTextResult().endsWith("MINIMUM: 600"),
+                   "decoded SOA");
+    }
+
+    static void replacesZeroTTL() throws Exception {
+        Message message = response(1, 0, 0);
+        message.pointer(QUESTION_NAME).record(RecordType.A.getCode(), 1, 0);
+        message.data(m -> m.bytes(10, 0, 0, 1));
+
+        DNSMessageReader reader = new DNSMessageReader(message.toBuffer());
+        assertTrue(reader.nextRecord(), "answer");
+        assertEquals(0L, reader.getRecordTTL(), "TTL as received");
+        assertEquals(5L, reader.toResourceRecord(5).getOriginalTTL(), "TTL of the record");
+    }
+
+    static void readsFromBufferPosition() throws Exception {
+        byte[] bytes = response(0, 0, 0).toBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+        buffer.put(new byte[] {0, (byte) bytes.length}).put(bytes).flip().position(2);
+
+        DNSMessageReader reader = new DNSMessageReader(buffer);
+        assertTrue(reader.questionMatches(new DNSNode("www.ubc.ca", RecordType.A)),
+                   "the message starts at the position of the buffer");
+        assertEquals(2, buffer.position(), "the position is not changed");
+    }
+
+    static void rejectsShortMessage() {
+        assertThrows(DNSParseException.class,
+                     () -> new DNSMessageReader(ByteBuffer.allocate(11)),
+                     "a message shorter than a header");
+    }
+
+    static void rejectsCompressionLoop() throws Exception {
+        Message message = new Message().shorts(1, 0x8000, 1, 0, 0, 0);
+        message.pointer(QUESTION_NAME).shorts(1, 1);
+
+        DNSMessageReader reader = new DNSMessageReader(message.toBuffer());
+        assertThrows(DNSParseException.class,
+                     () -> reader.questionMatches(new DNSNode("www.ubc.ca", RecordType.A)),
+                     "a pointer to itself");
+    }
+
+    static void rejectsRecordPastEnd() throws Exception {
+        Message message = response(1, 0, 0);
+        message.pointer(QUESTION_NAME).record(RecordType.A.getCode(), 1, 60);
+        message.shorts(4).bytes(10, 0);
+
+        DNSMessageReader reader = new DNSMessageReader(message.toBuffer());
+        assertThrows(DNSParseException.class, reader::nextRecord,
+                     "record data past the end of the message");
+    }
+
+    /** A response to a query for www.ubc.ca A, with ID 0x1234 and QR and AA set, whose
+     * records are to be added.
+     */
+    private static Message response(int answers, int authorities, int additionals)
+            throws IOException {
+        return new Message().shorts(0x1234, 0x8400, 1, answers, authorities, additionals)
+                            .label("www").label("ubc").label("ca").bytes(0)
+                            .shorts(RecordType.A.getCode(), 1);
+    }
+
+    /** Builds a message in wire format.
+     */
+    private static final class Message {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        interface Data {
+            void write(Message message) throws IOException;
+        }
+
+        Message bytes(int... values) {
+            for (int value : values)
+                bytes.write(value);
+            return this;
+        }
+
+        Message shorts(int... values) throws IOException {
+            for (int value : values)
+                out.writeShort(value);
+            return this;
+        }
+
+        Message ints(int... values) throws IOException {
+            for (int value : values)
+                out.writeInt(value);
+            return this;
+        }
+
+        Message label(String label) {
+            bytes.write(label.length());
+            bytes.writeBytes(label.getBytes());
+            return this;
+        }
+
+        Message pointer(int offset) throws IOException {
+            return shorts(0xC000 | offset);
+        }
+
+        /** Writes the type, class and TTL of a record, after its owner name. */
+        Message record(int type, int recordClass, int ttl) throws IOException {
+            return shorts(type, recordClass).ints(ttl);
+        }
+
+        /** Writes the data of a record, preceded by its length. */
+        Message data(Data data) throws IOException {
+            // The data is written after padding, so that it has the offsets it will have in
+            // the message, after its length.
+            int start = size() + 2;
+            Message content = new Message();
+            content.bytes.writeBytes(new byte[start]);
+            data.write(content);
+            byte[] written = content.toBytes();
+            shorts(written.length - start);
+            bytes.write(written, start, written.length - start);
+            return this;
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toBytes() {
+            return bytes.toByteArray();
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(toBytes());
+        }
+    }
+}
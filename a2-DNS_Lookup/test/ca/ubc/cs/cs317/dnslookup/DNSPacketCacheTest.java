@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of DNSPacketCache, with responses built by DNSResponseEncoder.
+ */
+public class DNSPacketCacheTest {
+
+    private static final DNSNode QUESTION = new DNSNode("www.ubc.ca", RecordType.A);
+    private static final int QUESTION_END = 12 + 12 + 4;
+    private static final int TTL = 300;
+
+    public static void main(String[] args) throws Exception {
+        run("answerHasTheIDFlagsAndCaseOfTheQuery",
+            DNSPacketCacheTest::answerHasTheIDFlagsAndCaseOfTheQuery);
+        run("ttlsAreDecreasedByTheTimeElapsed",
+            DNSPacketCacheTest::ttlsAreDecreasedByTheTimeElapsed);
+        run("queriesWithAndWithoutEDNSAreKeptApart",
+            DNSPacketCacheTest::queriesWithAndWithoutEDNSAreKeptApart);
+        run("responseLargerThanTheLimitIsNotUsed",
+            DNSPacketCacheTest::responseLargerThanTheLimitIsNotUsed);
+        run("responseAboutToExpireIsNotStored",
+            DNSPacketCacheTest::responseAboutToExpireIsNotStored);
+        run("expiredResponseIsNotServed", DNSPacketCacheTest::expiredResponseIsNotServed);
+    }
+
+    static void answerHasTheIDFlagsAndCaseOfTheQuery() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        store(cache, query(QUESTION, 0x1111, true), System.currentTimeMillis() + 60_000);
+
+        ByteBuffer query = query(new DNSNode("WWW.Ubc.CA", RecordType.A), 0x2222, false);
+        ByteBuffer response = ByteBuffer.allocate(DNSResponseEncoder.MAX_MESSAGE_SIZE);
+        assertTrue(cache.answer(query, QUESTION_END, false, 512, response), "a hit");
+
+        DNSMessageReader reader = new DNSMessageReader(response);
+        assertEquals((short) 0x2222, reader.getHeader().getTransactionID(), "transaction ID");
+        assertFalse(reader.getHeader().getRD(), "RD of the query");
+        assertEquals("WWW.Ubc.CA", reader.getQuestion().getHostName(), "case of the query");
+        assertTrue(reader.nextRecord(), "the answer");
+        assertEquals("142.103.6.5", reader.toResourceRecord(1).getTextResult(), "address");
+    }
+
+    static void ttlsAreDecreasedByTheTimeElapsed() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        ByteBuffer query = query(QUESTION, 1, true);
+        store(cache, query, System.currentTimeMillis() + 60_000);
+        ByteBuffer response = ByteBuffer.allocate(DNSResponseEncoder.MAX_MESSAGE_SIZE);
+
+        assertTrue(cache.answer(query, QUESTION_END, false, 512, response), "a hit");
+        long stored = firstTTL(response);
+        Thread.sleep(1100);
+        assertTrue(cache.answer(query, QUESTION_END, false, 512, response), "still a hit");
+        assertEquals(stored - 1, firstTTL(response), "one second less");
+    }
+
+    static void queriesWithAndWithoutEDNSAreKeptApart() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        ByteBuffer query = query(QUESTION, 1, true);
+        store(cache, query, System.currentTimeMillis() + 60_000);
+        ByteBuffer response = ByteBuffer.allocate(DNSResponseEncoder.MAX_MESSAGE_SIZE);
+
+        assertFalse(cache.answer(query, QUESTION_END, true, 512, response),
+                    "a response without an OPT record is not sent to an EDNS query");
+        assertTrue(cache.answer(query, QUESTION_END, false, 512, response),
+                   "it is sent to a query without one");
+    }
+
+    static void responseLargerThanTheLimitIsNotUsed() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        ByteBuffer query = query(QUESTION, 1, true);
+        store(cache, query, System.currentTimeMillis() + 60_000);
+        ByteBuffer response = ByteBuffer.allocate(DNSResponseEncoder.MAX_MESSAGE_SIZE);
+
+        assertFalse(cache.answer(query, QUESTION_END, false, QUESTION_END, response),
+                    "the response must be encoded again and truncated");
+        assertEquals(1, cache.size(), "the response is kept for larger limits");
+    }
+
+    static void responseAboutToExpireIsNotStored() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        store(cache, query(QUESTION, 1, true), System.currentTimeMillis() + 500);
+        assertEquals(0, cache.size(), "not worth storing");
+    }
+
+    static void expiredResponseIsNotServed() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        ByteBuffer query = query(QUESTION, 1, true);
+        store(cache, query, System.currentTimeMillis() + 1100);
+        assertEquals(1, cache.size(), "stored");
+
+        Thread.sleep(1200);
+        ByteBuffer response = ByteBuffer.allocate(DNSResponseEncoder.MAX_MESSAGE_SIZE);
+        assertFalse(cache.answer(query, QUESTION_END, false, 512, response), "expired");
+        assertEquals(0, cache.size(), "and removed");
+    }
+
+    /** Encodes and stores the response to a query, an A record for QUESTION.
+     */
+    private static void store(DNSPacketCache cache, ByteBuffer query, long expirationTime)
+            throws Exception {
+        ResourceRecord record = new ResourceRecord(QUESTION.getHostName(), RecordType.A, TTL,
+                                                   InetAddress.getByName("142.103.6.5"));
+        DNSResponseEncoder encoder = new DNSResponseEncoder();
+        ByteBuffer response = encoder.encode(query.getShort(0), true, QUESTION,
+                                             DNSHeader.RCODE__NO_ERROR, List.of(record), 0, 512);
+        cache.put(query, QUESTION_END, false, response, encoder.getTTLOffsets(), expirationTime);
+    }
+
+    /** Returns a copy of a query, with a transaction ID and RD bit.
+     */
+    private static ByteBuffer query(DNSNode node, int transactionID, boolean recursionDesired) {
+        DNSQueryEncoder encoder = new DNSQueryEncoder();
+        ByteBuffer encoded = encoder.encode(node);
+        ByteBuffer query = ByteBuffer.allocate(encoded.limit()).put(encoded).flip();
+        encoder.release(encoded);
+        DNSQueryEncoder.setTransactionID(query, transactionID);
+        if (recursionDesired)
+            query.put(2, (byte) (query.get(2) | 0x01));
+        return query;
+    }
+
+    private static long firstTTL(ByteBuffer response) throws Exception {
+        DNSMessageReader reader = new DNSMessageReader(response);
+        assertTrue(reader.nextRecord(), "the answer");
+        return reader.getRecordTTL();
+    }
+}
@@ -0,0 +1,152 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of DNSTcpTransport against a fake server on the loopback interface. The fake server
+ * answers a query with a copy of it that has the QR bit set, which matches the question.
+ */
+public class DNSTcpTransportTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        run("pipelinedQueriesAreAnsweredOutOfOrder",
+            DNSTcpTransportTest::pipelinedQueriesAreAnsweredOutOfOrder);
+        run("queryPendingOnDroppedConnectionIsSentAgain",
+            DNSTcpTransportTest::queryPendingOnDroppedConnectionIsSentAgain);
+        run("queryFailsIfConnectionDropsBeforeAnyAnswer",
+            DNSTcpTransportTest::queryFailsIfConnectionDropsBeforeAnyAnswer);
+    }
+
+    static void pipelinedQueriesAreAnsweredOutOfOrder() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             DNSTcpTransport transport = new DNSTcpTransport(Runnable::run)) {
+            CompletableFuture<Integer> connections = serve(server, socket -> {
+                byte[] first = readQuery(socket);
+                byte[] second = readQuery(socket);
+                writeResponse(socket, second);
+                writeResponse(socket, first);
+                readQuery(socket);  // Wait for the client to go away
+            }, 1);
+
+            CompletableFuture<DNSResponse> a = send(transport, server, "a.example.com");
+            CompletableFuture<DNSResponse> b = send(transport, server, "b.example.com");
+            assertAnswers(a.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "a.example.com");
+            assertAnswers(b.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "b.example.com");
+            assertEquals(1, transport.getConnectionCount(), "queries share a connection");
+            transport.close();
+            connections.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void queryPendingOnDroppedConnectionIsSentAgain() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+             DNSTcpTransport transport = new DNSTcpTransport(Runnable::run)) {
+            // The first connection answers one of two queries, then is dropped; the second
+            // answers the query that was left.
+            BlockingQueue<Integer> accepted = new LinkedBlockingQueue<>();
+            CompletableFuture<Integer> connections = serve(server, socket -> {
+                int connection = accepted.size();
+                accepted.add(connection);
+                byte[] first = readQuery(socket);
+                if (connection == 0) {
+                    readQuery(socket);
+                    writeResponse(socket, first);
+                } else {
+                    writeResponse(socket, first);
+                    readQuery(socket);
+                }
+            }, 2);
+
+            CompletableFuture<DNSResponse> a = send(transport, server, "a.example.com");
+            CompletableFuture<DNSResponse> b = send(transport, server, "b.example.com");
+            assertAnswers(a.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "a.example.com");
+            assertAnswers(b.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "b.example.com");
+            assertEquals(2, accepted.size(), "the second query is sent on a new connection");
+            transport.close();
+            connections.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static void queryFailsIfConnectionDropsBeforeAnyAnswer() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             DNSTcpTransport transport = new DNSTcpTransport(Runnable::run)) {
+            CompletableFuture<Integer> connections = serve(server, DNSTcpTransportTest::readQuery,
+                                                           1);
+
+            CompletableFuture<DNSResponse> a = send(transport, server, "a.example.com");
+            assertThrows(ExecutionException.class,
+                         () -> a.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                         "a server that never answered is not asked again");
+            connections.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** What the fake server does with one connection. The connection is closed afterwards.
+     */
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+
+    /** Accepts connections on a background thread and hands each one to a handler.
+     *
+     * @param server  The listening socket.
+     * @param handler What to do with each connection.
+     * @param count   Number of connections to accept.
+     * @return A future completed with count once every connection has been handled.
+     */
+    private static CompletableFuture<Integer> serve(ServerSocket server, Handler handler,
+                                                    int count) {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                try (Socket socket = server.accept()) {
+                    handler.handle(socket);
+                } catch (IOException e) {
+                    // The client closed the connection.
+                }
+            }
+            done.complete(count);
+        }, "fake-dns-server");
+        thread.setDaemon(true);
+        thread.start();
+        return done;
+    }
+
+    private static byte[] readQuery(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] query = new byte[in.readUnsignedShort()];
+        in.readFully(query);
+        return query;
+    }
+
+    private static void writeResponse(Socket socket, byte[] query) throws IOException {
+        byte[] response = query.clone();
+        response[2] |= (byte) 0x80;
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeShort(response.length);
+        out.write(response);
+        out.flush();
+    }
+
+    private static CompletableFuture<DNSResponse> send(DNSTcpTransport transport,
+                                                       ServerSocket server, String hostName) {
+        ByteBuffer query = new DNSQueryEncoder().encode(new DNSNode(hostName, RecordType.A));
+        return transport.send(new DNSNode(hostName, RecordType.A), server.getInetAddress(),
+                              server.getLocalPort(), query, TIMEOUT_MILLIS);
+    }
+
+    private static void assertAnswers(DNSResponse response, String hostName) throws Exception {
+        DNSMessageReader reader = new DNSMessageReader(response.getBuffer());
+        assertTrue(reader.getHeader().getQR(), "the response is a response");
+        assertTrue(reader.questionMatches(new DNSNode(hostName, RecordType.A)),
+                   "the response answers " + hostName);
+    }
+}
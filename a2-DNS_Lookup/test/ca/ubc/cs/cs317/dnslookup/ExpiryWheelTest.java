@@ -0,0 +1,75 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of ExpiryWheel, driven with made-up times rather than the clock.
+ */
+public class ExpiryWheelTest {
+
+    private static final long TICK = 1000;
+    private static final long START = 1_700_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        run("actionRunsOnceItsTimeHasPassed", ExpiryWheelTest::actionRunsOnceItsTimeHasPassed);
+        run("actionInThePastRunsOnNextAdvance",
+            ExpiryWheelTest::actionInThePastRunsOnNextAdvance);
+        run("actionsOnEveryLevelRunOnTime", ExpiryWheelTest::actionsOnEveryLevelRunOnTime);
+        run("actionBeyondLastLevelRunsOnTime", ExpiryWheelTest::actionBeyondLastLevelRunsOnTime);
+    }
+
+    static void actionRunsOnceItsTimeHasPassed() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(START + 2500, () -> fired.add("a"));
+
+        assertEquals(0, wheel.advance(START + 2999), "not run before its tick");
+        assertTrue(fired.isEmpty(), "nothing has run");
+        assertEquals(1, wheel.advance(START + 3000), "run on its tick");
+        assertEquals(List.of("a"), fired, "run once");
+        assertEquals(0, wheel.advance(START + 10000), "not run again");
+    }
+
+    static void actionInThePastRunsOnNextAdvance() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        wheel.advance(START + 5000);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(START, () -> fired.add("late"));
+
+        assertEquals(1, wheel.advance(START + 6000), "a late action runs on the next tick");
+        assertEquals(List.of("late"), fired, "run once");
+    }
+
+    static void actionsOnEveryLevelRunOnTime() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        // One delay in the range of each level: 64, 64^2 and 64^3 ticks.
+        long[] delays = {10, 100, 5000, 200000};
+        long[] firedAt = new long[delays.length];
+        long[] now = {START};
+        for (int i = 0; i < delays.length; i++) {
+            int index = i;
+            wheel.schedule(START + delays[i] * TICK, () -> firedAt[index] = now[0]);
+        }
+
+        for (long tick = 1; tick <= 200000; tick++) {
+            now[0] = START + tick * TICK;
+            wheel.advance(now[0]);
+        }
+        for (int i = 0; i < delays.length; i++)
+            assertEquals(START + delays[i] * TICK, firedAt[i],
+                         "action due in " + delays[i] + " ticks");
+    }
+
+    static void actionBeyondLastLevelRunsOnTime() {
+        ExpiryWheel wheel = new ExpiryWheel(TICK, START);
+        long delay = 64L * 64 * 64 * 64 + 1234;
+        int[] fired = {0};
+        wheel.schedule(START + delay * TICK, () -> fired[0]++);
+
+        assertEquals(0, wheel.advance(START + (delay - 1) * TICK), "not run early");
+        assertEquals(1, wheel.advance(START + delay * TICK), "run on its tick");
+        assertEquals(1, fired[0], "run once");
+    }
+}
@@ -0,0 +1,53 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of FrequencySketch.
+ */
+public class FrequencySketchTest {
+
+    public static void main(String[] args) throws Exception {
+        run("countsIncrements", FrequencySketchTest::countsIncrements);
+        run("capsAtFifteen", FrequencySketchTest::capsAtFifteen);
+        run("halvesCountsAfterSample", FrequencySketchTest::halvesCountsAfterSample);
+        run("resizingDiscardsCounts", FrequencySketchTest::resizingDiscardsCounts);
+    }
+
+    static void countsIncrements() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        assertEquals(0, sketch.frequency("www.ubc.ca"), "an unseen key");
+        for (int i = 1; i <= 5; i++) {
+            sketch.increment("www.ubc.ca");
+            assertEquals(i, sketch.frequency("www.ubc.ca"), "after " + i + " increments");
+        }
+        assertEquals(0, sketch.frequency("www.cs.ubc.ca"), "another key is not counted");
+    }
+
+    static void capsAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 100; i++)
+            sketch.increment("www.ubc.ca");
+        assertEquals(15, sketch.frequency("www.ubc.ca"), "counters are four bits wide");
+    }
+
+    static void halvesCountsAfterSample() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 14; i++)
+            sketch.increment("www.ubc.ca");
+        // The sample is ten times the table size, 640 increments for 64 keys.
+        for (int i = 0; i < 640; i++)
+            sketch.increment("host" + i + ".example.com");
+        int frequency = sketch.frequency("www.ubc.ca");
+        assertTrue(frequency < 14, "an old key loses weight, got " + frequency);
+        assertTrue(frequency >= 7, "but keeps half of it, got " + frequency);
+    }
+
+    static void resizingDiscardsCounts() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        sketch.increment("www.ubc.ca");
+        sketch.ensureCapacity(64);
+        assertEquals(1, sketch.frequency("www.ubc.ca"), "the same size keeps the counts");
+        sketch.ensureCapacity(4096);
+        assertEquals(0, sketch.frequency("www.ubc.ca"), "a new size starts over");
+    }
+}
@@ -0,0 +1,62 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Objects;
+
+/** Checks used by the tests. The tests have no dependencies, so that `make test` runs them with
+ * nothing but a JDK. Each test class has a main method that runs its tests with run, and fails
+ * with an AssertionError on the first check that does not hold.
+ */
+final class TestSupport {
+
+    /** A test that may throw anything.
+     */
+    interface Test {
+        void run() throws Exception;
+    }
+
+    private TestSupport() {
+    }
+
+    /** Runs a test and reports it on standard output.
+     *
+     * @param name Name of the test.
+     * @param test The test.
+     * @throws Exception if the test fails.
+     */
+    static void run(String name, Test test) throws Exception {
+        test.run();
+        System.out.println("ok   " + name);
+    }
+
+    static void assertTrue(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    static void assertFalse(boolean condition, String message) {
+        assertTrue(!condition, message);
+    }
+
+    static void assertEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+    }
+
+    /** Checks that a piece of code throws an exception of a given class.
+     *
+     * @param expected The class of the exception.
+     * @param test     The code.
+     * @param message  What is being checked.
+     */
+    static void assertThrows(Class<? extends Throwable> expected, Test test, String message) {
+        try {
+            test.run();
+        } catch (Throwable e) {
+            if (expected.isInstance(e))
+                return;
+            throw new AssertionError(message + ": expected " + expected.getSimpleName() +
+                                     ", got " + e, e);
+        }
+        throw new AssertionError(message + ": expected " + expected.getSimpleName());
+    }
+}
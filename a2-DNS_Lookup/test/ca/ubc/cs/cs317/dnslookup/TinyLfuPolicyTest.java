@@ -0,0 +1,88 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.List;
+
+import static ca.ubc.cs.cs317.dnslookup.TestSupport.*;
+
+/** Tests of TinyLfuPolicy. Whether a key is still tracked is checked with recordWeight, giving
+ * it the weight it already has.
+ */
+public class TinyLfuPolicyTest {
+
+    public static void main(String[] args) throws Exception {
+        run("staysWithinMaximumEntries", TinyLfuPolicyTest::staysWithinMaximumEntries);
+        run("staysWithinMaximumWeight", TinyLfuPolicyTest::staysWithinMaximumWeight);
+        run("frequentKeysSurviveAScan", TinyLfuPolicyTest::frequentKeysSurviveAScan);
+        run("removalAndWeightChangesAreTracked",
+            TinyLfuPolicyTest::removalAndWeightChangesAreTracked);
+        run("shrinkingEvictsRightAway", TinyLfuPolicyTest::shrinkingEvictsRightAway);
+    }
+
+    static void staysWithinMaximumEntries() {
+        TinyLfuPolicy<String> policy = new TinyLfuPolicy<>(100, Long.MAX_VALUE);
+        int evicted = 0;
+        for (int i = 0; i < 300; i++) {
+            policy.recordWrite("key" + i, 1);
+            evicted += policy.evict().size();
+        }
+        assertEquals(100L, policy.size(), "size is bounded");
+        assertEquals(200, evicted, "every key over the bound is evicted");
+    }
+
+    static void staysWithinMaximumWeight() {
+        TinyLfuPolicy<String> policy = new TinyLfuPolicy<>(1000, 1000);
+        for (int i = 0; i < 300; i++) {
+            policy.recordWrite("key" + i, 30);
+            policy.evict();
+        }
+        assertTrue(policy.weightedSize() <= 1000, "weight is bounded, got " +
+                   policy.weightedSize());
+        assertEquals(33L, policy.size(), "as many keys as fit");
+    }
+
+    static void frequentKeysSurviveAScan() {
+        TinyLfuPolicy<String> policy = new TinyLfuPolicy<>(100, Long.MAX_VALUE);
+        for (int i = 0; i < 50; i++) {
+            policy.recordWrite("hot" + i, 1);
+            policy.evict();
+        }
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < 50; i++)
+                policy.recordAccess("hot" + i);
+
+        for (int i = 0; i < 1000; i++) {
+            policy.recordWrite("once" + i, 1);
+            List<String> evicted = policy.evict();
+            for (String key : evicted)
+                assertFalse(key.startsWith("hot"), "a frequent key is kept: " + key);
+        }
+        for (int i = 0; i < 50; i++)
+            assertTrue(policy.recordWeight("hot" + i, 1), "hot" + i + " is still tracked");
+    }
+
+    static void removalAndWeightChangesAreTracked() {
+        TinyLfuPolicy<String> policy = new TinyLfuPolicy<>(100, 1000);
+        policy.recordWrite("a", 10);
+        policy.recordWrite("b", 20);
+        assertEquals(30L, policy.weightedSize(), "weights add up");
+
+        assertTrue(policy.recordWeight("a", 15), "a is tracked");
+        assertEquals(35L, policy.weightedSize(), "a new weight replaces the old one");
+
+        policy.recordRemoval("b");
+        assertEquals(1L, policy.size(), "b is gone");
+        assertEquals(15L, policy.weightedSize(), "with its weight");
+        assertFalse(policy.recordWeight("b", 20), "b is no longer tracked");
+    }
+
+    static void shrinkingEvictsRightAway() {
+        TinyLfuPolicy<String> policy = new TinyLfuPolicy<>(100, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++)
+            policy.recordWrite("key" + i, 1);
+        assertTrue(policy.evict().isEmpty(), "nothing over capacity");
+
+        policy.setMaximum(10, Long.MAX_VALUE);
+        assertEquals(90, policy.evict().size(), "evicted down to the new capacity");
+        assertEquals(10L, policy.size(), "size is the new capacity");
+    }
+}